@@ -110,7 +110,7 @@ public class AttributeMap implements Map<String,String>, Cloneable<AttributeMap>
         }
 
         @Override
-        void toString(StringBuilder out, FormattingOptions options) {
+        void toString(XMLWriter out, FormattingOptions options) {
         }
     };
 
@@ -201,18 +201,18 @@ public class AttributeMap implements Map<String,String>, Cloneable<AttributeMap>
 
     @Override
     public String toString() {
-        StringBuilder str = new StringBuilder();
-        toString(str, new FormattingOptions(XML.XML));
+        XMLWriter str = new XMLWriter();
+        toString(str, FormattingOptions.of(XML.XML));
         return str.toString();
     }
 
     /**
-     * Appends these attributes to the given StringBuilder. A leading space
+     * Writes these attributes into the given xml writer. A leading space
      * will also be included.
      *
-     * @param out The string builder to write into
+     * @param out The xml writer to write into
      */
-    void toString(StringBuilder out, FormattingOptions options) {
+    void toString(XMLWriter out, FormattingOptions options) {
         forEach((k,v) -> {
             out.append(' ');
             if(options.xhtml) {
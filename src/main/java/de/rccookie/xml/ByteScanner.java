@@ -0,0 +1,192 @@
+package de.rccookie.xml;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Internal helper methods to scan the structure of UTF-8 encoded xml directly on
+ * its bytes, without decoding or parsing it. All markup is ascii, so the scan can
+ * ignore multibyte characters. The scans do not validate the input, they only
+ * determine where elements start and end.
+ */
+final class ByteScanner {
+
+    private ByteScanner() {
+        throw new UnsupportedOperationException();
+    }
+
+
+    /**
+     * Scans the direct child elements in the given range of bytes, which is the
+     * content of an element.
+     *
+     * @param bytes The bytes to scan
+     * @param from The start of the content
+     * @param to The end of the content, exclusive
+     * @return For each child element four consecutive values: the start of the
+     *         element, the end of its start tag, the start of its closing tag (or
+     *         <code>-1</code> if it is self-closing) and the end of the element.
+     *         <code>null</code> if the structure could not be determined
+     */
+    static int[] scanChildren(ByteBuffer bytes, int from, int to) {
+        int[] children = new int[16];
+        int count = 0;
+        int depth = 0;
+
+        for(int i = indexOf(bytes, (byte) '<', from, to); i >= 0 && i + 1 < to; i = indexOf(bytes, (byte) '<', i, to)) {
+            byte next = bytes.get(i + 1);
+            if(next == '!') {
+                if(startsWith(bytes, i, "<!--"))
+                    i = skipPast(bytes, "-->", i + 4, to);
+                else if(startsWith(bytes, i, "<![CDATA["))
+                    i = skipPast(bytes, "]]>", i + 9, to);
+                else return null;
+            }
+            else if(next == '?')
+                i = skipPast(bytes, "?>", i + 2, to);
+            else if(next == '/') {
+                int tagStart = i;
+                i = skipTag(bytes, i + 2, to);
+                if(i < 0 || --depth < 0) return null;
+                if(depth == 0) {
+                    children = set(children, count + 2, tagStart);
+                    children = set(children, count + 3, i);
+                    count += 4;
+                }
+            }
+            else if(isStartNameByte(next)) {
+                int tagStart = i;
+                i = skipTag(bytes, i + 2, to);
+                if(i < 0) return null;
+                boolean selfClosing = bytes.get(i - 2) == '/';
+                if(depth == 0) {
+                    children = set(children, count, tagStart);
+                    children = set(children, count + 1, i);
+                    if(selfClosing) {
+                        children = set(children, count + 2, -1);
+                        children = set(children, count + 3, i);
+                        count += 4;
+                    }
+                }
+                if(!selfClosing) depth++;
+            }
+            else i++; // Unescaped '<' in text
+            if(i < 0) return null;
+        }
+        return depth == 0 ? Arrays.copyOf(children, count) : null;
+    }
+
+    /**
+     * Returns the index after the end of the tag whose content starts at the given
+     * index, skipping over quoted attribute values.
+     *
+     * @param bytes The bytes to search in
+     * @param from The index to start at
+     * @param to The index to stop searching at, exclusive
+     * @return The index after the closing <code>'>'</code>, or <code>-1</code>
+     */
+    static int skipTag(ByteBuffer bytes, int from, int to) {
+        for(int i=from; i<to; i++) {
+            byte b = bytes.get(i);
+            if(b == '>') return i + 1;
+            if(b == '"' || b == '\'') {
+                i = indexOf(bytes, b, i + 1, to);
+                if(i < 0) return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index after the next occurrence of the given ascii string.
+     *
+     * @param bytes The bytes to search in
+     * @param string The string to search for
+     * @param from The index to start searching at
+     * @param to The index to stop searching at, exclusive
+     * @return The index after the string, or <code>-1</code>
+     */
+    static int skipPast(ByteBuffer bytes, String string, int from, int to) {
+        byte first = (byte) string.charAt(0);
+        for(int i = indexOf(bytes, first, from, to); i >= 0; i = indexOf(bytes, first, i + 1, to))
+            if(i + string.length() <= to && startsWith(bytes, i, string)) return i + string.length();
+        return -1;
+    }
+
+    static int indexOf(ByteBuffer bytes, byte b, int from, int to) {
+        for(int i=from; i<to; i++)
+            if(bytes.get(i) == b) return i;
+        return -1;
+    }
+
+    static boolean startsWith(ByteBuffer bytes, int index, String string) {
+        if(index + string.length() > bytes.limit()) return false;
+        for(int i=0; i<string.length(); i++)
+            if(bytes.get(index + i) != string.charAt(i)) return false;
+        return true;
+    }
+
+    /**
+     * Returns whether the given bytes at the given indices are equal.
+     *
+     * @param bytes The bytes to compare in
+     * @param a The start of the first range
+     * @param b The start of the second range
+     * @param length The length of the ranges
+     * @return Whether the ranges contain the same bytes
+     */
+    static boolean rangeEquals(ByteBuffer bytes, int a, int b, int length) {
+        for(int i=0; i<length; i++)
+            if(bytes.get(a + i) != bytes.get(b + i)) return false;
+        return true;
+    }
+
+    /**
+     * Returns whether the given byte may start a tag name. Any non-ascii byte is
+     * accepted, the parser will validate the actual character.
+     *
+     * @param b The byte to test
+     * @return Whether the byte may start a tag name
+     */
+    static boolean isStartNameByte(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || b == ':' || b == '_' || b < 0;
+    }
+
+    /**
+     * Returns the index after the tag name starting at the given index.
+     *
+     * @param bytes The bytes to scan
+     * @param from The start of the tag name
+     * @param to The index to stop at, exclusive
+     * @return The index of the first byte after the name
+     */
+    static int skipName(ByteBuffer bytes, int from, int to) {
+        int i = from;
+        for(byte b; i < to && (b = bytes.get(i)) != '>' && b != '/' && b != ' ' && b != '\t' && b != '\n' && b != '\r'; i++);
+        return i;
+    }
+
+    /**
+     * Strictly decodes the given range of UTF-8 bytes.
+     *
+     * @param bytes The bytes to decode from
+     * @param start The start of the range
+     * @param end The end of the range, exclusive
+     * @return The decoded string
+     * @throws CharacterCodingException If the bytes are malformed
+     */
+    static String decode(ByteBuffer bytes, int start, int end) throws CharacterCodingException {
+        CharBuffer chars = StandardCharsets.UTF_8.newDecoder().decode(bytes.duplicate().limit(end).position(start));
+        return chars.toString();
+    }
+
+    static int[] set(int[] array, int index, int value) {
+        if(index >= array.length)
+            array = Arrays.copyOf(array, Math.max(index + 1, array.length * 2));
+        array[index] = value;
+        return array;
+    }
+}
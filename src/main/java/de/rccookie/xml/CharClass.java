@@ -0,0 +1,85 @@
+package de.rccookie.xml;
+
+/**
+ * Internal lookup table for the character classes used by the tokenizer. The
+ * classes of all latin-1 characters are precomputed, so that classifying a
+ * character is a single array access instead of a chain of comparisons.
+ */
+final class CharClass {
+
+    /**
+     * Characters that may start a tag name or attribute key.
+     */
+    static final int NAME_START = 1;
+    /**
+     * Characters that may appear in a tag name or attribute key.
+     */
+    static final int NAME = 1 << 1;
+    /**
+     * Whitespace characters, as specified by {@link Character#isWhitespace(char)}.
+     */
+    static final int WHITESPACE = 1 << 2;
+    /**
+     * Characters that start markup in text, <code>'&lt;'</code> and <code>'&amp;'</code>.
+     */
+    static final int MARKUP = 1 << 3;
+    /**
+     * Characters that delimit values within tags, <code>'&gt;'</code> and quotes.
+     */
+    static final int DELIMITER = 1 << 4;
+
+    /**
+     * The classes of all latin-1 characters.
+     */
+    private static final byte[] CLASSES = new byte[0x100];
+    static {
+        for(char c=0; c<CLASSES.length; c++) {
+            int classes = 0;
+            //noinspection UnnecessaryUnicodeEscape
+            if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == ':' || c == '_' || c >= '\u00c0')
+                classes |= NAME_START | NAME;
+            //noinspection UnnecessaryUnicodeEscape
+            if(c == '-' || c == '.' || (c >= '0' && c <= '9') || c == '\u00b7')
+                classes |= NAME;
+            if(Character.isWhitespace(c))
+                classes |= WHITESPACE;
+            if(c == '<' || c == '&')
+                classes |= MARKUP;
+            if(c == '>' || c == '"' || c == '\'')
+                classes |= DELIMITER;
+            CLASSES[c] = (byte) classes;
+        }
+    }
+
+
+    private CharClass() {
+        throw new UnsupportedOperationException();
+    }
+
+
+    /**
+     * Returns whether the given character belongs to any of the given classes.
+     *
+     * @param c The character to test, or <code>-1</code>
+     * @param classes The classes to test for, combined using <code>|</code>
+     * @return Whether the character is in any of the classes
+     */
+    static boolean is(int c, int classes) {
+        if(c < 0x100)
+            return c >= 0 && (CLASSES[c] & classes) != 0;
+        // All other characters are either whitespaces or name characters
+        return (classes & (Character.isWhitespace(c) ? WHITESPACE : NAME_START | NAME)) != 0;
+    }
+
+    static boolean isNameStart(int c) {
+        return is(c, NAME_START);
+    }
+
+    static boolean isName(int c) {
+        return is(c, NAME);
+    }
+
+    static boolean isWhitespace(int c) {
+        return is(c, WHITESPACE);
+    }
+}
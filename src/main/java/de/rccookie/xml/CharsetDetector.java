@@ -0,0 +1,285 @@
+package de.rccookie.xml;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Internal helper methods to detect the charset of an xml or html document from
+ * the first bytes of it, before decoding anything. The charset is determined from
+ * (in that order) a byte order mark, the byte pattern of the leading
+ * <code>"&lt;?"</code> in UTF-16, the <code>encoding</code> of the xml declaration,
+ * or a <code>&lt;meta charset&gt;</code> or <code>&lt;meta http-equiv="Content-Type"&gt;</code>
+ * tag before the <code>&lt;body&gt;</code> tag. If none of them is present, UTF-8 is
+ * assumed.
+ */
+final class CharsetDetector {
+
+    /**
+     * The number of bytes at the start of the input that are scanned for a charset
+     * declaration.
+     */
+    static final int PRESCAN_LENGTH = 4096;
+
+
+    private CharsetDetector() {
+        throw new UnsupportedOperationException();
+    }
+
+
+    /**
+     * Detects the charset of the input starting with the given bytes. Only the first
+     * {@link #PRESCAN_LENGTH} bytes are scanned.
+     *
+     * @param bytes The bytes of the input, from index <code>0</code> up to the limit
+     *              of the buffer. The position of the buffer is ignored
+     * @return The detected charset
+     */
+    static Charset detect(ByteBuffer bytes) {
+        ByteBuffer head = bytes.duplicate().position(0).limit(Math.min(bytes.limit(), PRESCAN_LENGTH));
+        if(startsWith(head, 0xEF, 0xBB, 0xBF)) return StandardCharsets.UTF_8;
+        if(startsWith(head, 0xFE, 0xFF) || startsWith(head, 0x00, 0x3C, 0x00, 0x3F))
+            return StandardCharsets.UTF_16BE;
+        if(startsWith(head, 0xFF, 0xFE) || startsWith(head, 0x3C, 0x00, 0x3F, 0x00))
+            return StandardCharsets.UTF_16LE;
+
+        Charset declared = ByteScanner.startsWith(head, 0, "<?xml") ? declaredXMLEncoding(head) : declaredMetaCharset(head);
+        // A document that declares UTF-16 in ascii is not actually encoded that way
+        if(declared == null || declared.name().startsWith("UTF-16")) return StandardCharsets.UTF_8;
+        return declared;
+    }
+
+    /**
+     * Returns whether the charset detected from the given bytes is final, that is, the
+     * same as detected from them followed by any other bytes. This is the case if the
+     * bytes start with a byte order mark or a complete xml declaration, or contain a
+     * <code>&lt;meta&gt;</code> tag declaring a supported charset or the
+     * <code>&lt;body&gt;</code> tag.
+     *
+     * @param head The first bytes of the input, from index <code>0</code> up to the
+     *             limit of the buffer
+     * @return Whether the detected charset cannot change with more bytes
+     */
+    static boolean isDecided(ByteBuffer head) {
+        int length = head.limit();
+        if(bomLength(head) != 0 || startsWith(head, 0x00, 0x3C, 0x00, 0x3F) || startsWith(head, 0x3C, 0x00, 0x3F, 0x00))
+            return true;
+        if(ByteScanner.startsWith(head, 0, "<?xml"))
+            return ByteScanner.skipPast(head, "?>", 5, length) >= 0;
+        // Too short to rule out the start of a byte order mark or xml declaration
+        return length >= 5 && findCharsetTag(head) >= 0;
+    }
+
+    /**
+     * Returns the length of the byte order mark the given bytes start with.
+     *
+     * @param head The bytes of the input, from index <code>0</code>
+     * @return The length of the byte order mark, or <code>0</code> if there is none
+     */
+    static int bomLength(ByteBuffer head) {
+        if(startsWith(head, 0xEF, 0xBB, 0xBF)) return 3;
+        if(startsWith(head, 0xFE, 0xFF) || startsWith(head, 0xFF, 0xFE)) return 2;
+        return 0;
+    }
+
+    /**
+     * Returns whether input in the given charset can be decoded as UTF-8.
+     *
+     * @param charset The charset to test
+     * @return Whether the charset is UTF-8 or a subset of it
+     */
+    static boolean isUTF8(Charset charset) {
+        return charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Returns the charset specified by the xml declaration at the start of the given
+     * bytes.
+     *
+     * @param head The first bytes of the input, starting with <code>"&lt;?xml"</code>
+     * @return The declared charset, or <code>null</code> if none or an unsupported one
+     *         is declared
+     */
+    private static Charset declaredXMLEncoding(ByteBuffer head) {
+        int end = ByteScanner.skipPast(head, "?>", 5, head.limit());
+        if(end < 0) return null;
+        return forName(attributes(head, 5, end - 2).get("encoding"));
+    }
+
+    /**
+     * Returns the charset specified by the first <code>&lt;meta&gt;</code> tag with a
+     * charset declaration within the given bytes, before the <code>&lt;body&gt;</code>
+     * tag.
+     *
+     * @param head The first bytes of the input
+     * @return The declared charset, or <code>null</code> if none or an unsupported one
+     *         is declared
+     */
+    private static Charset declaredMetaCharset(ByteBuffer head) {
+        int i = findCharsetTag(head);
+        if(i < 0 || startsWithIgnoreCase(head, i + 1, "body")) return null;
+        return metaCharset(head, i + 5, ByteScanner.skipTag(head, i + 5, head.limit()) - 1);
+    }
+
+    /**
+     * Finds the first <code>&lt;meta&gt;</code> tag within the given bytes that declares
+     * a supported charset, or the <code>&lt;body&gt;</code> tag, whichever comes first.
+     * Comments are skipped.
+     *
+     * @param head The first bytes of the input
+     * @return The index of the tag, or <code>-1</code> if the bytes end before either
+     *         of them
+     */
+    private static int findCharsetTag(ByteBuffer head) {
+        int length = head.limit();
+        for(int i = ByteScanner.indexOf(head, (byte) '<', 0, length); i >= 0; i = ByteScanner.indexOf(head, (byte) '<', i + 1, length)) {
+            if(ByteScanner.startsWith(head, i, "<!--")) {
+                int end = ByteScanner.skipPast(head, "-->", i + 4, length);
+                if(end < 0) return -1;
+                i = end - 1;
+            }
+            else if(i + 5 < length && isAttributeEnd(head.get(i + 5))) {
+                if(startsWithIgnoreCase(head, i + 1, "body")) return i;
+                if(!startsWithIgnoreCase(head, i + 1, "meta")) continue;
+                int end = ByteScanner.skipTag(head, i + 5, length);
+                if(end < 0) return -1;
+                if(metaCharset(head, i + 5, end - 1) != null) return i;
+                i = end - 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the charset declared by the <code>&lt;meta&gt;</code> tag with the given
+     * attributes, either in its <code>charset</code> attribute or in the content type
+     * of a <code>http-equiv="Content-Type"</code> tag.
+     *
+     * @param bytes The bytes to parse from
+     * @param from The start of the attributes of the tag
+     * @param to The end of the attributes, exclusive
+     * @return The declared charset, or <code>null</code> if none or an unsupported one
+     *         is declared
+     */
+    private static Charset metaCharset(ByteBuffer bytes, int from, int to) {
+        Map<String,String> attributes = attributes(bytes, from, to);
+        String charset = attributes.get("charset");
+        if(charset == null && "content-type".equalsIgnoreCase(attributes.get("http-equiv")))
+            charset = contentTypeCharset(attributes.get("content"));
+        return forName(charset);
+    }
+
+    /**
+     * Parses the attributes in the given range of bytes, which is the inside of a
+     * tag after its name. Keys are converted to lowercase, attributes without value
+     * have an empty value.
+     *
+     * @param bytes The bytes to parse from
+     * @param from The start of the attributes
+     * @param to The end of the attributes, exclusive
+     * @return The parsed attributes
+     */
+    private static Map<String,String> attributes(ByteBuffer bytes, int from, int to) {
+        Map<String,String> attributes = new HashMap<>();
+        int i = from;
+        while(true) {
+            while(i < to && (isSpace(bytes.get(i)) || bytes.get(i) == '/')) i++;
+            if(i >= to) return attributes;
+
+            int keyStart = i;
+            while(i < to && !isAttributeEnd(bytes.get(i)) && bytes.get(i) != '=') i++;
+            if(i == keyStart) i++; // Stray '='
+            String key = ascii(bytes, keyStart, i).toLowerCase(Locale.ROOT);
+
+            while(i < to && isSpace(bytes.get(i))) i++;
+            String value = "";
+            if(i < to && bytes.get(i) == '=') {
+                i++;
+                while(i < to && isSpace(bytes.get(i))) i++;
+                if(i < to && (bytes.get(i) == '"' || bytes.get(i) == '\'')) {
+                    int end = ByteScanner.indexOf(bytes, bytes.get(i), i + 1, to);
+                    if(end < 0) end = to;
+                    value = ascii(bytes, i + 1, end);
+                    i = end + 1;
+                }
+                else {
+                    int valueStart = i;
+                    while(i < to && !isSpace(bytes.get(i))) i++;
+                    value = ascii(bytes, valueStart, i);
+                }
+            }
+            attributes.putIfAbsent(key, value);
+        }
+    }
+
+    /**
+     * Extracts the charset parameter from the given content type, like
+     * <code>"text/html; charset=utf-8"</code>.
+     *
+     * @param contentType The content type, or <code>null</code>
+     * @return The charset parameter, or <code>null</code> if there is none
+     */
+    private static String contentTypeCharset(String contentType) {
+        if(contentType == null) return null;
+        int i = contentType.toLowerCase(Locale.ROOT).indexOf("charset");
+        if(i < 0) return null;
+        i += 7;
+        while(i < contentType.length() && isSpace((byte) contentType.charAt(i))) i++;
+        if(i >= contentType.length() || contentType.charAt(i++) != '=') return null;
+        while(i < contentType.length() && isSpace((byte) contentType.charAt(i))) i++;
+        if(i < contentType.length() && (contentType.charAt(i) == '"' || contentType.charAt(i) == '\'')) i++;
+        int end = i;
+        while(end < contentType.length() && ";\"' \t\n\r\f".indexOf(contentType.charAt(end)) < 0) end++;
+        return contentType.substring(i, end);
+    }
+
+    /**
+     * Returns the charset with the given name, if supported.
+     *
+     * @param name The name of the charset, or <code>null</code>
+     * @return The charset, or <code>null</code> if the name is <code>null</code> or
+     *         the charset is not supported
+     */
+    static Charset forName(String name) {
+        if(name == null) return null;
+        name = name.strip();
+        try {
+            return Charset.isSupported(name) ? Charset.forName(name) : null;
+        } catch(IllegalCharsetNameException e) {
+            return null;
+        }
+    }
+
+    private static boolean startsWith(ByteBuffer bytes, int... prefix) {
+        if(bytes.limit() < prefix.length) return false;
+        for(int i=0; i<prefix.length; i++)
+            if((bytes.get(i) & 0xFF) != prefix[i]) return false;
+        return true;
+    }
+
+    private static boolean startsWithIgnoreCase(ByteBuffer bytes, int index, String string) {
+        if(index + string.length() > bytes.limit()) return false;
+        for(int i=0; i<string.length(); i++)
+            if(Character.toLowerCase((char) bytes.get(index + i)) != string.charAt(i)) return false;
+        return true;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+    }
+
+    private static boolean isAttributeEnd(byte b) {
+        return isSpace(b) || b == '/' || b == '>';
+    }
+
+    private static String ascii(ByteBuffer bytes, int from, int to) {
+        byte[] chars = new byte[to - from];
+        for(int i=from; i<to; i++)
+            chars[i - from] = bytes.get(i);
+        return new String(chars, StandardCharsets.ISO_8859_1);
+    }
+}
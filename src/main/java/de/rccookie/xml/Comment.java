@@ -66,7 +66,7 @@ public class Comment extends Node {
     }
 
     @Override
-    void toString(StringBuilder str, FormattingOptions options) {
+    void toString(XMLWriter str, FormattingOptions options) {
         str.append("<!--").append(comment).append("-->");
     }
 
@@ -76,7 +76,7 @@ public class Comment extends Node {
     }
 
     @Override
-    void innerXML(StringBuilder str, FormattingOptions options) {
+    void innerXML(XMLWriter str, FormattingOptions options) {
         // Comment has no inner value
     }
 
@@ -144,10 +144,10 @@ public class Doctype extends Node {
     }
 
     @Override
-    void toString(StringBuilder str, FormattingOptions options) {
+    void toString(XMLWriter str, FormattingOptions options) {
         str.append("<!DOCTYPE ").append(rootElement);
         if(locationType != null) {
-            str.append(' ').append(locationType);
+            str.append(' ').append(locationType.toString());
             if(locationType == LocationType.PUBLIC) str.append(" \"").append(name).append('"');
             str.append(" \"").append(location).append('"');
             if(locationType == LocationType.SYSTEM && structure != null)
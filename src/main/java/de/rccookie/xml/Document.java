@@ -1,5 +1,6 @@
 package de.rccookie.xml;
 
+import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.Objects;
 
@@ -32,6 +33,10 @@ public class Document extends Node {
      * The doctype node.
      */
     private Doctype doctype;
+    /**
+     * The charset the document was decoded with when it was parsed, or <code>null</code>.
+     */
+    Charset charset = null;
 
     private W3cDocumentView view = null;
 
@@ -117,6 +122,18 @@ public class Document extends Node {
         return doctype;
     }
 
+    /**
+     * Returns the charset that the document was decoded with when it was parsed from
+     * bytes. This is the charset specified by a byte order mark, the xml declaration
+     * or a <code>&lt;meta&gt;</code> tag, or UTF-8 if none was specified.
+     *
+     * @return The charset of the parsed input, or <code>null</code> if the document
+     *         was not parsed from bytes
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
     /**
      * Returns the root element in this document, or <code>null</code> if none is present.
      * If multiple root nodes are present (which is generally not allowed in xml documents),
@@ -162,7 +179,7 @@ public class Document extends Node {
     }
 
     @Override
-    void toString(StringBuilder str, FormattingOptions options) {
+    void toString(XMLWriter str, FormattingOptions options) {
         if(xmlDeclaration != null) {
             xmlDeclaration.toString(str, options);
             if(options.formatted) str.append('\n');
@@ -175,7 +192,7 @@ public class Document extends Node {
     }
 
     @Override
-    void innerXML(StringBuilder str, FormattingOptions options) {
+    void innerXML(XMLWriter str, FormattingOptions options) {
         if(options.xhtml) {
             Node[] withoutBlank = children.stream().filter(n -> !(n instanceof Text) || !n.text().isBlank()).toArray(Node[]::new);
 
@@ -1,10 +1,25 @@
 package de.rccookie.xml;
 
 /**
- * Formatting options for printing xml.
+ * Formatting options for printing xml. Instances are immutable and shared: there
+ * is one instance per set of options, and one per indentation level of it.
  */
 final class FormattingOptions {
 
+    /**
+     * The option flags relevant for formatting.
+     */
+    private static final long[] FLAGS = {
+            XML.FORMATTED, XML.COLLAPSE_EMPTY, XML.COLLAPSE_INNER, XML.SELF_CLOSE_VOID_TAGS, XML.SPACE_BEFORE_SELF_CLOSE,
+            XML.ALLOW_DOUBLE_DASH_IN_COMMENT, XML.TRY_FIX_ERRORS, XML.HTML_OPTION, XML.XHTML_OPTION
+    };
+    /**
+     * The unindented instances for each combination of flags, indexed by
+     * {@link #key(long)}. Entries are created on demand, racing threads may create
+     * equal instances.
+     */
+    private static final FormattingOptions[] CACHE = new FormattingOptions[1 << FLAGS.length];
+
     /**
      * Should the xml string be formatted with newlines and indents?
      */
@@ -47,12 +62,49 @@ final class FormattingOptions {
      */
     final int indent;
 
+    /**
+     * The instance indented one level more, created on demand.
+     */
+    private FormattingOptions indented = null;
+    /**
+     * The unformatted instance, created on demand.
+     */
+    private FormattingOptions unformatted = null;
+
+    /**
+     * Returns the formatting options instance for the given options.
+     *
+     * @param options The options, see {@link XML}
+     * @return The formatting options, not indented
+     */
+    static FormattingOptions of(long options) {
+        int key = key(options);
+        FormattingOptions formattingOptions = CACHE[key];
+        if(formattingOptions == null)
+            CACHE[key] = formattingOptions = new FormattingOptions(options);
+        return formattingOptions;
+    }
+
+    /**
+     * Returns the index in the cache of the formatting options for the given options,
+     * which consists of the flags relevant for formatting.
+     *
+     * @param options The options, see {@link XML}
+     * @return The cache index
+     */
+    private static int key(long options) {
+        int key = 0;
+        for(int i=0; i<FLAGS.length; i++)
+            if((options & FLAGS[i]) != 0) key |= 1 << i;
+        return key;
+    }
+
     /**
      * Creates a new formatting options instance from the given options.
      *
      * @param options The options, see {@link XML}
      */
-    FormattingOptions(long options) {
+    private FormattingOptions(long options) {
         formatted = (options & XML.FORMATTED) != 0;
         collapseEmpty = (options & XML.COLLAPSE_EMPTY) != 0;
         collapseInner = (options & XML.COLLAPSE_INNER) != 0;
@@ -93,7 +145,10 @@ final class FormattingOptions {
      */
     FormattingOptions indent() {
         if(!formatted) return this;
-        return new FormattingOptions(this, true);
+        FormattingOptions indented = this.indented;
+        if(indented == null)
+            this.indented = indented = new FormattingOptions(this, true);
+        return indented;
     }
 
     /**
@@ -104,6 +159,9 @@ final class FormattingOptions {
      */
     FormattingOptions noFormat() {
         if(!formatted) return this;
-        return new FormattingOptions(this, false);
+        FormattingOptions unformatted = this.unformatted;
+        if(unformatted == null)
+            this.unformatted = unformatted = new FormattingOptions(this, false);
+        return unformatted;
     }
 }
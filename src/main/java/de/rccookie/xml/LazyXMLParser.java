@@ -0,0 +1,303 @@
+package de.rccookie.xml;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Internal class that parses xml files lazily. The file is mapped into memory and
+ * a fast pre-scan over its bytes checks that all elements are properly nested and
+ * finds the content of the root element. Everything outside the root's content is
+ * parsed right away, but the children of the root element are only parsed when they
+ * are first accessed. Then, again, only the direct children are parsed, and the
+ * content of each of them is deferred until it is accessed, and so on.
+ * <p>If the document does not use plain xml syntax or the elements are not properly
+ * nested, the file is parsed completely right away. Other syntax errors within deferred
+ * content are only reported once it is accessed.</p>
+ */
+final class LazyXMLParser {
+
+    /**
+     * Files smaller than this are always parsed right away.
+     */
+    private static final long MIN_LAZY_SIZE = 1 << 16;
+
+
+    private LazyXMLParser() {
+        throw new UnsupportedOperationException();
+    }
+
+
+    /**
+     * Parses the given UTF-8 encoded file, lazily if possible.
+     *
+     * @param file The file to parse
+     * @param options Parsing options
+     * @param metrics The metrics to record into, or <code>null</code>. Deferred
+     *                content is recorded once it is parsed
+     * @return The parsed document
+     */
+    static Document parse(Path file, long options, ParseMetrics metrics) {
+        Document document = tryParseLazy(file, options, metrics);
+        return document != null ? document : XML.getParser(file, options).setMetrics(metrics).parseAll();
+    }
+
+    /**
+     * Tries to parse the given file lazily.
+     *
+     * @param file The file to parse
+     * @param options Parsing options
+     * @param metrics The metrics to record into, or <code>null</code>
+     * @return The parsed document, or <code>null</code> if the file has to be
+     *         parsed right away
+     */
+    private static Document tryParseLazy(Path file, long options, ParseMetrics metrics) {
+        if((options & (XML.HTML_OPTION | XML.XHTML_OPTION)) != 0) return null;
+
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(size < MIN_LAZY_SIZE || size > Integer.MAX_VALUE) return null;
+
+            ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            Charset charset = CharsetDetector.detect(bytes);
+            if(!CharsetDetector.isUTF8(charset) || CharsetDetector.bomLength(bytes) != 0) return null;
+            int[] root = findRootContent(bytes);
+            if(root == null) return null;
+
+            // Parse everything except the root's content right away, this also detects the syntax
+            String outer = ByteScanner.decode(bytes, 0, root[0]) + ByteScanner.decode(bytes, root[1], (int) size);
+            boolean[] warned = { false };
+            SymbolTable symbols = new SymbolTable();
+            // Only record the attempt if it succeeds, the fallback parses the file again
+            ParseMetrics attempt = metrics != null ? new ParseMetrics() : null;
+            XMLParser outerParser = new XMLParser(outer, options)
+                    .setSymbolTable(symbols)
+                    .setWarningListener(w -> warned[0] = true)
+                    .setMetrics(attempt);
+            Document document = outerParser.parseAll();
+            if(warned[0] || !outerParser.isXMLSyntax()) return null;
+
+            Node rootElement = null;
+            for(Node node : document.children)
+                if(!(node instanceof Text || node instanceof Comment || node instanceof Prolog)) {
+                    rootElement = node;
+                    break;
+                }
+            if(rootElement == null || !rootElement.children.isEmpty()) return null;
+
+            Source source = new Source(bytes, options & ~XML.AUTO_DETECT_SYNTAX, symbols, metrics);
+            rootElement.children.defer(new Content(source, rootElement.tag, 1, root[0], root[1]));
+            document.charset = charset;
+            if(metrics != null) metrics.add(attempt);
+            return document;
+        } catch(IOException | RuntimeException e) {
+            return null; // Parse right away to report the error at the correct position
+        }
+    }
+
+    /**
+     * Scans the given bytes for the content of the root element, and checks that all
+     * elements in the file are properly nested, with matching closing tags.
+     *
+     * @param bytes The bytes of the file
+     * @return The end of the start tag of the root element and the start of its closing
+     *         tag, or <code>null</code> if the structure is invalid or the root has no
+     *         content
+     */
+    private static int[] findRootContent(ByteBuffer bytes) {
+        int size = bytes.limit();
+        int[] names = new int[32]; // Start and length of the tag name of each open element
+        int depth = 0;
+        int contentStart = -1;
+
+        for(int i = ByteScanner.indexOf(bytes, (byte) '<', 0, size); i >= 0 && i + 1 < size; i = ByteScanner.indexOf(bytes, (byte) '<', i, size)) {
+            byte next = bytes.get(i + 1);
+            if(next == '!') {
+                if(ByteScanner.startsWith(bytes, i, "<!--"))
+                    i = ByteScanner.skipPast(bytes, "-->", i + 4, size);
+                else if(ByteScanner.startsWith(bytes, i, "<![CDATA["))
+                    i = ByteScanner.skipPast(bytes, "]]>", i + 9, size);
+                else if(depth == 0 && contentStart < 0)
+                    i = ByteScanner.skipTag(bytes, i + 2, size); // Doctype
+                else return null;
+            }
+            else if(next == '?')
+                i = ByteScanner.skipPast(bytes, "?>", i + 2, size);
+            else if(next == '/') {
+                if(depth == 0) return null;
+                int tagStart = i, nameEnd = ByteScanner.skipName(bytes, i + 2, size);
+                int nameStart = names[2 * depth - 2], nameLength = names[2 * depth - 1];
+                if(nameEnd - i - 2 != nameLength || !ByteScanner.rangeEquals(bytes, nameStart, i + 2, nameLength))
+                    return null;
+                i = ByteScanner.skipTag(bytes, nameEnd, size);
+                if(i < 0) return null;
+                if(--depth == 0)
+                    return tagStart > contentStart ? new int[] { contentStart, tagStart } : null;
+            }
+            else if(ByteScanner.isStartNameByte(next)) {
+                int nameEnd = ByteScanner.skipName(bytes, i + 1, size);
+                int nameStart = i + 1;
+                i = ByteScanner.skipTag(bytes, nameEnd, size);
+                if(i < 0) return null;
+                if(bytes.get(i - 2) != '/') {
+                    if(depth == 0) {
+                        if(contentStart >= 0) return null; // Multiple root elements
+                        contentStart = i;
+                    }
+                    names = ByteScanner.set(names, 2 * depth, nameStart);
+                    names = ByteScanner.set(names, 2 * depth + 1, nameEnd - nameStart);
+                    depth++;
+                }
+                else if(depth == 0) return null; // Self-closing root
+            }
+            else i++; // Unescaped '<' in text
+            if(i < 0) return null;
+        }
+        return null;
+    }
+
+
+    /**
+     * The source of a lazily parsed document, shared by all of its deferred content.
+     */
+    private static final class Source {
+
+        /**
+         * The bytes of the file.
+         */
+        final ByteBuffer bytes;
+        /**
+         * The options to parse content with.
+         */
+        final long options;
+        /**
+         * The symbol table shared by all parsers of the document.
+         */
+        final SymbolTable symbols;
+        /**
+         * The metrics to record deferred content into, or <code>null</code>.
+         */
+        final ParseMetrics metrics;
+
+        Source(ByteBuffer bytes, long options, SymbolTable symbols, ParseMetrics metrics) {
+            this.bytes = bytes;
+            this.options = options;
+            this.symbols = symbols;
+            this.metrics = metrics;
+        }
+    }
+
+    /**
+     * The deferred content of an element. When requested, it parses the direct
+     * children of the element, and defers the content of each child element.
+     */
+    private static final class Content implements Supplier<List<Node>> {
+
+        /**
+         * The source of the document.
+         */
+        private final Source source;
+        /**
+         * The tag of the element.
+         */
+        private final String tag;
+        /**
+         * The depth of the element in the document.
+         */
+        private final int depth;
+        /**
+         * The range of the content in the source bytes.
+         */
+        private final int start, end;
+
+        Content(Source source, String tag, int depth, int start, int end) {
+            this.source = source;
+            this.tag = tag;
+            this.depth = depth;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public List<Node> get() {
+            ByteBuffer bytes = source.bytes;
+            int[] children = ByteScanner.scanChildren(bytes, start, end);
+            if(children == null)
+                throw new XMLParseException("Malformed content of <"+tag+">");
+
+            // The direct content, with each child element's content removed
+            StringBuilder str = new StringBuilder();
+            CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+            int pos = start;
+            for(int i=0; i<children.length; i+=4) {
+                decode(decoder, bytes, pos, children[i], str);
+                if(children[i + 2] < 0)
+                    decode(decoder, bytes, children[i], children[i + 3], str);
+                else {
+                    decode(decoder, bytes, children[i], children[i + 1] - 1, str);
+                    str.append("/>");
+                }
+                pos = children[i + 3];
+            }
+            decode(decoder, bytes, pos, end, str);
+
+            List<Node> nodes;
+            try(XMLParser parser = new XMLParser(str, source.options)) {
+                nodes = parser.setSymbolTable(source.symbols).setMetrics(source.metrics).parseContent(tag, depth);
+            }
+            if(nodes == null)
+                throw new XMLParseException("Malformed content of <"+tag+">");
+
+            int i = 0;
+            for(Node node : nodes) {
+                if(node instanceof Text || node instanceof Comment || node instanceof Prolog) continue;
+                if(i >= children.length)
+                    throw new XMLParseException("Malformed content of <"+tag+">");
+                int contentStart = children[i + 1], contentEnd = children[i + 2];
+                if(contentEnd > contentStart)
+                    node.children.defer(new Content(source, node.tag, depth + 1, contentStart, contentEnd));
+                i += 4;
+            }
+            if(i != children.length)
+                throw new XMLParseException("Malformed content of <"+tag+">");
+            return nodes;
+        }
+
+        /**
+         * Decodes the given range of UTF-8 bytes and appends the characters.
+         *
+         * @param decoder The decoder to use
+         * @param bytes The bytes to decode from
+         * @param from The start of the range
+         * @param to The end of the range, exclusive
+         * @param out The builder to append to
+         */
+        private static void decode(CharsetDecoder decoder, ByteBuffer bytes, int from, int to, StringBuilder out) {
+            if(from >= to) return;
+            ByteBuffer in = bytes.duplicate().limit(to).position(from);
+            CharBuffer chars = CharBuffer.allocate(to - from);
+            decoder.reset();
+            CoderResult result = decoder.decode(in, chars, true);
+            if(!result.isUnderflow()) {
+                try {
+                    result.throwException();
+                } catch(CharacterCodingException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            decoder.flush(chars);
+            out.append(chars.flip());
+        }
+    }
+}
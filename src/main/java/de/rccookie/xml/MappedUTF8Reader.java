@@ -0,0 +1,101 @@
+package de.rccookie.xml;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Internal reader that decodes a UTF-8 encoded file by memory-mapping it and
+ * decoding the bytes directly into the caller's character array. Unlike an
+ * {@link java.io.InputStreamReader} there is no intermediate byte or character
+ * buffer. Malformed input is reported with a
+ * {@link java.nio.charset.MalformedInputException}.
+ * <p>Files larger than the mapping window are mapped in consecutive windows.
+ * The reader may also be limited to a byte range of the file.</p>
+ */
+final class MappedUTF8Reader extends UTF8Reader {
+
+    /**
+     * Maximum number of bytes mapped at once.
+     */
+    private static final long WINDOW_SIZE = 1 << 28;
+
+    /**
+     * The channel of the file.
+     */
+    private final FileChannel channel;
+    /**
+     * Offset in the file up to which the file is read, exclusive.
+     */
+    private final long end;
+    /**
+     * Offset of {@link #bytes} in the file.
+     */
+    private long windowOffset = 0;
+
+
+    /**
+     * Opens and maps the given file.
+     *
+     * @param file The file to read
+     * @throws IOException If an I/O error occurs opening the file
+     */
+    MappedUTF8Reader(Path file) throws IOException {
+        this(file, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Opens the given file and maps the given byte range of it. The range should
+     * start and end at character boundaries.
+     *
+     * @param file The file to read
+     * @param start The offset in the file to start reading at
+     * @param end The offset in the file to stop reading at, exclusive. May exceed
+     *            the size of the file
+     * @throws IOException If an I/O error occurs opening the file
+     */
+    MappedUTF8Reader(Path file, long start, long end) throws IOException {
+        super(false);
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            this.end = Math.min(end, channel.size());
+            windowOffset = Math.min(start, this.end);
+            bytes = channel.map(FileChannel.MapMode.READ_ONLY, windowOffset, Math.min(this.end - windowOffset, WINDOW_SIZE));
+        } catch(IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    boolean isLastWindow() {
+        return windowOffset + bytes.limit() == end;
+    }
+
+    /**
+     * Maps the next window of the file, starting at the current position in
+     * the current window.
+     *
+     * @return Whether there was any more data to map
+     */
+    @Override
+    boolean nextWindow() throws IOException {
+        long start = windowOffset + bytes.position();
+        if(start == end) return false;
+        if(start == windowOffset) return true; // Current window starts at the current position already
+        bytes = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(end - start, WINDOW_SIZE));
+        windowOffset = start;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return "MappedUTF8Reader{until " + end + ", at " + (windowOffset + bytes.position()) + "}";
+    }
+}
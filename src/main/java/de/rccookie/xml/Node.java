@@ -10,6 +10,7 @@ import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Set;
 import java.util.Spliterator;
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
@@ -218,19 +219,42 @@ public class Node implements Iterable<Node>, Cloneable<Node>, JsonSerializable {
      */
     @NotNull
     public String toString(long options) {
-        StringBuilder str = new StringBuilder();
-        toString(str, new FormattingOptions(options));
+        if(!XMLEvents.active()) return serialize(options);
+        XMLEvents.Serialize event = new XMLEvents.Serialize();
+        event.begin();
+        String result = serialize(options);
+        event.end();
+        if(event.shouldCommit()) {
+            event.operation = "toString";
+            event.tag = tag;
+            event.chars = result.length();
+            event.options = options;
+            event.commit();
+        }
+        return result;
+    }
+
+    /**
+     * Returns this node as xml string using the given formatting options, without
+     * recording a flight recorder event.
+     *
+     * @param options Formatting options, see {@link XML}
+     * @return This node as xml string
+     */
+    String serialize(long options) {
+        XMLWriter str = new XMLWriter();
+        toString(str, FormattingOptions.of(options));
         return str.toString();
     }
 
     /**
-     * Appends this node as xml string to the given StringBuilder, using the
+     * Writes this node as xml string into the given xml writer, using the
      * specified formatting.
      *
-     * @param str The string builder to write into
+     * @param str The xml writer to write into
      * @param options The formatting to use
      */
-    void toString(StringBuilder str, FormattingOptions options) {
+    void toString(XMLWriter str, FormattingOptions options) {
 
         str.append('<');
         if(options.xhtml) {
@@ -265,14 +289,14 @@ public class Node implements Iterable<Node>, Cloneable<Node>, JsonSerializable {
         options = (options.html || options.xhtml) && (tag.equalsIgnoreCase("pre")) ? options.noFormat() : options;
 
         boolean newline = options.formatted && !options.collapseInner && ((children.size() == 1 && (!(children.get(0) instanceof Text) || (children.get(0).text().contains("\n")))) || children.size() > 1);
-        if(newline) str.append('\n').append("  ".repeat(options.indent+1));
+        if(newline) str.newline(options.indent + 1);
 
         if(options.collapseInner && !children.isEmpty())
             str.append("...");
         else innerXML(str, options.indent());
 
         if(newline)
-            str.append('\n').append("  ".repeat(options.indent));
+            str.newline(options.indent);
         str.append("</").append(tag).append('>');
     }
 
@@ -418,23 +442,23 @@ public class Node implements Iterable<Node>, Cloneable<Node>, JsonSerializable {
      */
     @NotNull
     public String innerXML(long options) {
-        StringBuilder str = new StringBuilder();
-        innerXML(str, new FormattingOptions(options));
+        XMLWriter str = new XMLWriter();
+        innerXML(str, FormattingOptions.of(options));
         return str.toString();
     }
 
     /**
-     * Appends this node's inner xml string to the given StringBuilder using
+     * Writes this node's inner xml string into the given xml writer using
      * the specified formatting.
      *
-     * @param str The string builder to append to
+     * @param str The xml writer to write into
      * @param options Formatting options
      */
-    void innerXML(StringBuilder str, FormattingOptions options) {
+    void innerXML(XMLWriter str, FormattingOptions options) {
         if(children.isEmpty()) return;
 
         for(int i=0; i<children.size(); i++) {
-            if(i != 0 && options.formatted) str.append('\n').append("  ".repeat(options.indent));
+            if(i != 0 && options.formatted) str.newline(options.indent);
             children.get(i).toString(str, options);
         }
     }
@@ -474,9 +498,11 @@ public class Node implements Iterable<Node>, Cloneable<Node>, JsonSerializable {
     public void setInnerXML(@NotNull String xml, long options) {
         Arguments.checkNull(xml, "xml");
         List<Node> newChildren = new ArrayList<>();
-        if(!xml.isBlank())
-            for(Node node : XML.getParser(xml, options))
+        if(!xml.isBlank()) XML.withReusableParser(xml, options, parser -> {
+            for(Node node : parser)
                 newChildren.add(node);
+            return null;
+        });
         children.clear();
         children.addAll(newChildren);
     }
@@ -522,10 +548,12 @@ public class Node implements Iterable<Node>, Cloneable<Node>, JsonSerializable {
      */
     public Node withOuterXML(@NotNull String xml, long options) {
         Arguments.checkNull(xml, "xml");
-        XMLParser parser = XML.getParser(xml, options);
-        Node newNode = parser.next();
-        if(parser.hasNext())
-            throw new IllegalArgumentException("withOuterXML() xml string contains more than one root node");
+        Node newNode = XML.withReusableParser(xml, options, parser -> {
+            Node node = parser.next();
+            if(parser.hasNext())
+                throw new IllegalArgumentException("withOuterXML() xml string contains more than one root node");
+            return node;
+        });
         if(parent != null)
             parent.children.replace(this, newNode);
         return newNode;
@@ -569,10 +597,12 @@ public class Node implements Iterable<Node>, Cloneable<Node>, JsonSerializable {
      */
     public void setOuterXML(@NotNull String xml, long options) {
         Arguments.checkNull(xml, "xml");
-        XMLParser parser = XML.getParser(xml, options);
-        Node newNode = parser.next();
-        if(parser.hasNext())
-            throw new IllegalArgumentException("setOuterXML() xml string contains more than one root node");
+        Node newNode = XML.withReusableParser(xml, options, parser -> {
+            Node node = parser.next();
+            if(parser.hasNext())
+                throw new IllegalArgumentException("setOuterXML() xml string contains more than one root node");
+            return node;
+        });
         if(!tag.equals(newNode.tag))
             throw new IllegalArgumentException("setOuterXML() only allowed with the same root node tag");
         children.clear();
@@ -799,7 +829,9 @@ public class Node implements Iterable<Node>, Cloneable<Node>, JsonSerializable {
      * @return The node found, or null
      */
     public Node getElementByAttr(@NotNull String attribute, @NotNull String value) {
-        return getElementsByAttr(attribute, value).findAny().orElse(null);
+        Arguments.checkNull(attribute);
+        Arguments.checkNull(value);
+        return first("attr", attribute, value, n -> value.equals(n.attribute(attribute)));
     }
 
     /**
@@ -810,7 +842,8 @@ public class Node implements Iterable<Node>, Cloneable<Node>, JsonSerializable {
      * @return The first node with that tag, or null
      */
     public Node getElementByTag(@NotNull String name) {
-        return getElementsByTag(name).findFirst().orElse(null);
+        Arguments.checkNull(name);
+        return first("tag", null, name, t -> name.equals(t.tag));
     }
 
     /**
@@ -822,7 +855,8 @@ public class Node implements Iterable<Node>, Cloneable<Node>, JsonSerializable {
      * @return The first node found, or null
      */
     public Node getElementByClass(@NotNull String names) {
-        return getElementsByClass(names).findFirst().orElse(null);
+        names = Arguments.checkNull(names, "names").trim();
+        return first("class", null, names, classFilter(names));
     }
 
     /**
@@ -833,7 +867,7 @@ public class Node implements Iterable<Node>, Cloneable<Node>, JsonSerializable {
      * @return The node found, or null
      */
     public Node getElementByName(@NotNull String name) {
-        return getElementsByName(name).findFirst().orElse(null);
+        return getElementByAttr("name", name);
     }
 
     /**
@@ -847,7 +881,7 @@ public class Node implements Iterable<Node>, Cloneable<Node>, JsonSerializable {
     public ListStream<Node> getElementsByAttr(@NotNull String attribute, @NotNull String value) {
         Arguments.checkNull(attribute);
         Arguments.checkNull(value);
-        return getElements().filter(n -> value.equals(n.attribute(attribute)));
+        return query("attr", attribute, value, n -> value.equals(n.attribute(attribute)));
     }
 
     /**
@@ -859,7 +893,7 @@ public class Node implements Iterable<Node>, Cloneable<Node>, JsonSerializable {
     @NotNull
     public ListStream<Node> getElementsByTag(@NotNull String name) {
         Arguments.checkNull(name);
-        return getElements().filter(t -> name.equals(t.tag));
+        return query("tag", null, name, t -> name.equals(t.tag));
     }
 
     /**
@@ -873,9 +907,7 @@ public class Node implements Iterable<Node>, Cloneable<Node>, JsonSerializable {
     @NotNull
     public ListStream<Node> getElementsByClass(@NotNull String names) {
         names = Arguments.checkNull(names, "names").trim();
-        if(names.isEmpty()) return getElements();
-        List<String> classes = Arrays.asList(CLASS_SPLIT_PAT.split(names.trim()));
-        return getElements().filter(n -> n.classList().containsAll(classes));
+        return query("class", null, names, classFilter(names));
     }
 
     /**
@@ -889,6 +921,67 @@ public class Node implements Iterable<Node>, Cloneable<Node>, JsonSerializable {
         return getElementsByAttr("name", name);
     }
 
+    /**
+     * Returns a filter that accepts elements with all the given classes.
+     *
+     * @param names The class names, separated with spaces, already trimmed
+     * @return A filter for elements with these classes
+     */
+    private static Predicate<Node> classFilter(String names) {
+        if(names.isEmpty()) return n -> true;
+        List<String> classes = Arrays.asList(CLASS_SPLIT_PAT.split(names));
+        return n -> n.classList().containsAll(classes);
+    }
+
+    /**
+     * Returns all elements in this xml tree accepted by the given filter. If a flight
+     * recording is running, the query is recorded once the returned stream has been
+     * traversed completely.
+     *
+     * @param query The kind of query, for the recorded event
+     * @param attribute The attribute searched for, or <code>null</code>
+     * @param value The value searched for
+     * @param filter The filter for the elements
+     * @return The nodes found
+     */
+    private ListStream<Node> query(String query, String attribute, String value, Predicate<Node> filter) {
+        ListStream<Node> matches = getElements().filter(filter);
+        if(!XMLEvents.active()) return matches;
+        XMLEvents.Query event = new XMLEvents.Query();
+        if(!event.isEnabled()) return matches;
+        event.query = query;
+        event.attribute = attribute;
+        event.value = value;
+        event.begin();
+        return ListStream.of(new XMLEvents.QuerySpliterator(matches.spliterator(), event));
+    }
+
+    /**
+     * Returns the first element in this xml tree accepted by the given filter, and
+     * records the query if a flight recording is running.
+     *
+     * @param query The kind of query, for the recorded event
+     * @param attribute The attribute searched for, or <code>null</code>
+     * @param value The value searched for
+     * @param filter The filter for the elements
+     * @return The first node found, or null
+     */
+    private Node first(String query, String attribute, String value, Predicate<Node> filter) {
+        if(!XMLEvents.active()) return getElements().filter(filter).findFirst().orElse(null);
+        XMLEvents.Query event = new XMLEvents.Query();
+        event.begin();
+        Node node = getElements().filter(filter).findFirst().orElse(null);
+        event.end();
+        if(event.shouldCommit()) {
+            event.query = query;
+            event.attribute = attribute;
+            event.value = value;
+            event.matches = node != null ? 1 : 0;
+            event.commit();
+        }
+        return node;
+    }
+
     /**
      * Collects the form data of this node and all its children, as a browser would when submitting a
      * <code>&lt;form></code> element. This node doesn't necessarily need to have the tag "form". If this
@@ -5,6 +5,7 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.function.Supplier;
 
 import de.rccookie.util.Arguments;
 import de.rccookie.util.ListStream;
@@ -18,10 +19,17 @@ import org.jetbrains.annotations.NotNull;
 public class NodeList implements List<Node> {
 
     /**
-     * The list that backs this node list.
+     * The list that backs this node list. Use {@link #list()} to access it, which
+     * materializes deferred content first.
      */
     @NotNull
     private final List<Node> list;
+    /**
+     * Supplier of the content of this list that has not been parsed yet, or
+     * <code>null</code>. The nodes supplied are appended to the list when it
+     * is first accessed.
+     */
+    private volatile Supplier<? extends List<Node>> deferred = null;
     /**
      * The node that this children list belongs to.
      */
@@ -52,14 +60,46 @@ public class NodeList implements List<Node> {
         for(Node n : list) checkElement(Arguments.checkNull(n, "child node"));
     }
 
+    /**
+     * Defers the content of this list, which has to be empty. The given supplier
+     * is invoked the first time the list is accessed, and the nodes it returns,
+     * which have to be new nodes without parent, are appended to the list. If the
+     * list is cleared before, the supplier is discarded without being invoked.
+     *
+     * @param content The supplier of the content of this list
+     */
+    void defer(Supplier<? extends List<Node>> content) {
+        if(deferred != null || !list.isEmpty())
+            throw new IllegalStateException("Content already present");
+        deferred = Arguments.checkNull(content, "content");
+    }
+
+    /**
+     * Returns the list backing this node list, materializing deferred content first.
+     *
+     * @return The backing list
+     */
+    private List<Node> list() {
+        if(deferred != null) materialize();
+        return list;
+    }
+
+    private synchronized void materialize() {
+        Supplier<? extends List<Node>> content = deferred;
+        if(content == null) return;
+        List<Node> nodes = content.get();
+        for(Node n : nodes) addNew(n);
+        deferred = null;
+    }
+
     @Override
     public int size() {
-        return list.size();
+        return list().size();
     }
 
     @Override
     public boolean isEmpty() {
-        return list.isEmpty();
+        return list().isEmpty();
     }
 
     @Override
@@ -69,22 +109,22 @@ public class NodeList implements List<Node> {
 
     @Override
     public Iterator<Node> iterator() {
-        return list.iterator();
+        return list().iterator();
     }
 
     @Override
     public Object[] toArray() {
-        return list.toArray();
+        return list().toArray();
     }
 
     @Override
     public <T> T[] toArray(T @NotNull [] a) {
-        return list.toArray(a);
+        return list().toArray(a);
     }
 
     @Override
     public boolean add(Node element) {
-        return add0(list.size(), element);
+        return add0(list().size(), element);
     }
 
 //    public boolean addObj(Object obj) {
@@ -92,12 +132,31 @@ public class NodeList implements List<Node> {
 //    }
 
     private void checkElement(Node node) {
-        if(node instanceof Doctype || node instanceof XMLDeclaration)
-            throw new IllegalArgumentException("Doctype and xml declaration can only be set directly using Document.setDoctype() and Document.setXMLDeclaration()");
+        checkType(node);
         for(Node p = this.node; p != null; p = p.parent)
             if(p == node) throw new NestedXMLNodeException();
     }
 
+    private static void checkType(Node node) {
+        if(node instanceof Doctype || node instanceof XMLDeclaration)
+            throw new IllegalArgumentException("Doctype and xml declaration can only be set directly using Document.setDoctype() and Document.setXMLDeclaration()");
+    }
+
+    /**
+     * Appends the given node, which has to be a newly created node without parent.
+     * Unlike {@link #add(Node)}, this does not search the list for the node or walk
+     * up the parents to check for cycles, which would make building deep or wide
+     * trees quadratic. Used by the parser, which only ever appends new nodes.
+     *
+     * @param element The node to append
+     */
+    void addNew(Node element) {
+        checkType(element);
+        assert element.parent == null;
+        list.add(element);
+        element.parent = this.node;
+    }
+
     @Override
     public boolean remove(Object o) {
         int index = indexOf(o);
@@ -167,8 +226,8 @@ public class NodeList implements List<Node> {
     @Override
     public boolean retainAll(@NotNull Collection<?> c) {
         boolean changed = false;
-        for(int i=0; i<list.size(); i++) {
-            if(!c.contains(list.get(i))) {
+        for(int i=0; i<list().size(); i++) {
+            if(!c.contains(list().get(i))) {
                 remove(i--);
                 changed = true;
             }
@@ -178,12 +237,17 @@ public class NodeList implements List<Node> {
 
     @Override
     public void clear() {
+        if(deferred != null) {
+            synchronized(this) {
+                deferred = null; // Discard the content without parsing it
+            }
+        }
         list.clear();
     }
 
     @Override
     public Node get(int index) {
-        return list.get(index);
+        return list().get(index);
     }
 
     @Override
@@ -240,13 +304,13 @@ public class NodeList implements List<Node> {
         int prevIndex = indexOf(element);
         if(prevIndex != -1) {
             if(prevIndex == index) return false;
-            list.remove(prevIndex);
-            list.add(index, element);
+            list().remove(prevIndex);
+            list().add(index, element);
         }
         else {
             if(element.parent != null)
                 element.parent.children.remove(element);
-            list.add(index, element);
+            list().add(index, element);
             element.parent = this.node;
         }
         return true;
@@ -254,7 +318,7 @@ public class NodeList implements List<Node> {
 
     @Override
     public Node remove(int index) {
-        Node prev = list.remove(index);
+        Node prev = list().remove(index);
         prev.parent = null;
         return prev;
     }
@@ -268,8 +332,8 @@ public class NodeList implements List<Node> {
      */
     @Override
     public int indexOf(Object o) {
-        for(int i=0, stop=list.size(); i<stop; i++)
-            if(list.get(i) == o) return i;
+        for(int i=0, stop=list().size(); i<stop; i++)
+            if(list().get(i) == o) return i;
         return -1;
     }
 
@@ -283,8 +347,8 @@ public class NodeList implements List<Node> {
      */
     @Override
     public int lastIndexOf(Object o) {
-        for(int i=list.size()-1; i>=0; i--)
-            if(list.get(i) == o) return i;
+        for(int i=list().size()-1; i>=0; i--)
+            if(list().get(i) == o) return i;
         return -1;
     }
 
@@ -295,7 +359,7 @@ public class NodeList implements List<Node> {
 
     @Override
     public ListIterator<Node> listIterator(int index) {
-        ListIterator<Node> it = list.listIterator(index);
+        ListIterator<Node> it = list().listIterator(index);
         return new ListIterator<>() {
             @Override
             public boolean hasNext() {
@@ -346,33 +410,33 @@ public class NodeList implements List<Node> {
 
     @Override
     public List<Node> subList(int fromIndex, int toIndex) {
-        return new NodeList(list.subList(fromIndex, toIndex), node);
+        return new NodeList(list().subList(fromIndex, toIndex), node);
     }
 
 
     @Override
     public boolean equals(Object o) {
-        return list.equals(o);
+        return list().equals(o);
     }
 
     @Override
     public int hashCode() {
-        return list.hashCode(); // Don't use node to avoid cycle reference
+        return list().hashCode(); // Don't use node to avoid cycle reference
     }
 
     @Override
     public String toString() {
-        return list.toString();
+        return list().toString();
     }
 
     @Override
     public ListStream<Node> stream() {
-        return ListStream.of(list);
+        return ListStream.of(list());
     }
 
     @Override
     public ListStream<Node> parallelStream() {
-        return ListStream.of(list.parallelStream());
+        return ListStream.of(list().parallelStream());
     }
 
     W3cNodeListView asW3cNodeList() {
@@ -0,0 +1,236 @@
+package de.rccookie.xml;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Internal class that parses large xml files using multiple threads. A fast
+ * pre-scan over the bytes of the file finds the boundaries between the children
+ * of the root element, skipping over comments, CDATA sections, processing
+ * instructions and quoted attribute values. The content of the root is then
+ * split at some of these boundaries and the chunks are parsed concurrently in
+ * the common {@link ForkJoinPool}, each by its own parser that treats the root
+ * element as already open. Everything outside the root's content is parsed
+ * sequentially, and the chunks' nodes are added to the root in document order.
+ * <p>To guarantee that the result is identical to parsing the file sequentially,
+ * the parallel parse is abandoned and the file is parsed sequentially if the
+ * document does not use plain xml syntax, if any part produces a warning or error,
+ * or if a chunk does not consist of complete nodes.</p>
+ */
+final class ParallelXMLParser {
+
+    /**
+     * Files smaller than this are always parsed sequentially.
+     */
+    private static final long MIN_PARALLEL_SIZE = 1 << 20;
+    /**
+     * Minimum size of a chunk, in bytes.
+     */
+    private static final int MIN_CHUNK_SIZE = 1 << 18;
+    /**
+     * Number of chunks per worker thread, so that uneven chunks even out.
+     */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+
+    private ParallelXMLParser() {
+        throw new UnsupportedOperationException();
+    }
+
+
+    /**
+     * Parses the given UTF-8 encoded file, in parallel if possible.
+     *
+     * @param file The file to parse
+     * @param options Parsing options
+     * @param metrics The metrics to record into, or <code>null</code>
+     * @return The parsed document
+     */
+    static Document parse(Path file, long options, ParseMetrics metrics) {
+        // Only record a parallel attempt if it succeeds, the fallback parses the file again
+        ParseMetrics attempt = metrics != null ? new ParseMetrics() : null;
+        Document document = tryParseParallel(file, options, attempt);
+        if(document == null)
+            return XML.getParser(file, options).setMetrics(metrics).parseAll();
+        if(metrics != null) metrics.add(attempt);
+        return document;
+    }
+
+    /**
+     * Tries to parse the given file in parallel.
+     *
+     * @param file The file to parse
+     * @param options Parsing options
+     * @param metrics The metrics to record into, or <code>null</code>
+     * @return The parsed document, or <code>null</code> if the file has to be
+     *         parsed sequentially
+     */
+    private static Document tryParseParallel(Path file, long options, ParseMetrics metrics) {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        if(pool.getParallelism() < 2) return null;
+
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(size < MIN_PARALLEL_SIZE || size > Integer.MAX_VALUE) return null;
+
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            Charset charset = CharsetDetector.detect(bytes);
+            if(!CharsetDetector.isUTF8(charset) || CharsetDetector.bomLength(bytes) != 0) return null;
+            int chunkSize = (int) Math.max(MIN_CHUNK_SIZE, size / ((long) pool.getParallelism() * CHUNKS_PER_THREAD));
+            int[] splits = findSplits(bytes, chunkSize);
+            if(splits == null || splits.length < 3) return null;
+
+            // Parse everything except the root's content sequentially, this also detects the syntax
+            String outer = ByteScanner.decode(bytes, 0, splits[0]) + ByteScanner.decode(bytes, splits[splits.length - 1], (int) size);
+            boolean[] warned = { false };
+            SymbolTable symbols = new SymbolTable();
+            XMLParser outerParser = new XMLParser(outer, options)
+                    .setSymbolTable(symbols)
+                    .setWarningListener(w -> warned[0] = true)
+                    .setMetrics(metrics);
+            Document document = outerParser.parseAll();
+            if(warned[0] || !outerParser.isXMLSyntax()) return null;
+
+            Node root = rootElement(document);
+            if(root == null || !root.children.isEmpty()) return null;
+            String rootTag = root.tag;
+            long chunkOptions = options & ~XML.AUTO_DETECT_SYNTAX;
+
+            List<ForkJoinTask<List<Node>>> chunks = new ArrayList<>(splits.length - 1);
+            for(int i=1; i<splits.length; i++) {
+                long start = splits[i-1], end = splits[i];
+                chunks.add(pool.submit(() -> parseChunk(file, start, end, chunkOptions, rootTag, symbols, metrics)));
+            }
+            try {
+                for(ForkJoinTask<List<Node>> chunk : chunks) {
+                    List<Node> nodes = chunk.join();
+                    if(nodes == null) {
+                        chunks.forEach(c -> c.cancel(true));
+                        return null;
+                    }
+                    for(Node node : nodes)
+                        root.children.addNew(node);
+                }
+            } catch(RuntimeException e) {
+                chunks.forEach(c -> c.cancel(true));
+                throw e;
+            }
+            document.charset = charset;
+            return document;
+        } catch(IOException | RuntimeException e) {
+            return null; // Parse sequentially to report the error at the correct position
+        }
+    }
+
+    /**
+     * Parses the given byte range of the file as content of the root element.
+     *
+     * @param file The file to parse
+     * @param start The start of the chunk in the file
+     * @param end The end of the chunk in the file, exclusive
+     * @param options Parsing options
+     * @param rootTag The tag of the root element
+     * @param symbols The symbol table shared by all chunks
+     * @param metrics The metrics to record into, or <code>null</code>
+     * @return The nodes in the chunk, or <code>null</code> if the chunk could not be
+     *         parsed the same way as when parsing sequentially
+     */
+    private static List<Node> parseChunk(Path file, long start, long end, long options, String rootTag, SymbolTable symbols, ParseMetrics metrics) {
+        boolean[] warned = { false };
+        try(XMLParser parser = new XMLParser(new MappedUTF8Reader(file, start, end), options)) {
+            List<Node> nodes = parser.setSymbolTable(symbols)
+                    .setWarningListener(w -> warned[0] = true)
+                    .setMetrics(metrics)
+                    .parseContent(rootTag, 1);
+            return warned[0] ? null : nodes;
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the root element of the given document.
+     *
+     * @param document The document to get the root element of
+     * @return The first element in the document, or <code>null</code>
+     */
+    private static Node rootElement(Document document) {
+        for(Node node : document.children)
+            if(!(node instanceof Text || node instanceof Comment || node instanceof Prolog))
+                return node;
+        return null;
+    }
+
+    /**
+     * Scans the given bytes for the positions at which the content of the root
+     * element can be split, which are the end of the start tag of the root, the
+     * start of its closing tag, and the ends of some of its child elements in
+     * between, each about the given chunk size apart from the previous split.
+     *
+     * @param bytes The bytes of the file
+     * @param chunkSize The minimum distance between two splits
+     * @return The split positions, or <code>null</code> if the structure of the
+     *         root element could not be determined
+     */
+    private static int[] findSplits(ByteBuffer bytes, int chunkSize) {
+        int[] splits = new int[16];
+        int count = 0;
+        int size = bytes.limit();
+        int depth = 0;
+
+        for(int i = ByteScanner.indexOf(bytes, (byte) '<', 0, size); i >= 0 && i + 1 < size; i = ByteScanner.indexOf(bytes, (byte) '<', i, size)) {
+            byte next = bytes.get(i + 1);
+            if(next == '!') {
+                if(ByteScanner.startsWith(bytes, i, "<!--"))
+                    i = ByteScanner.skipPast(bytes, "-->", i + 4, size);
+                else if(ByteScanner.startsWith(bytes, i, "<![CDATA["))
+                    i = ByteScanner.skipPast(bytes, "]]>", i + 9, size);
+                else if(depth == 0)
+                    i = ByteScanner.skipTag(bytes, i + 2, size); // Doctype
+                else return null;
+            }
+            else if(next == '?')
+                i = ByteScanner.skipPast(bytes, "?>", i + 2, size);
+            else if(next == '/') {
+                int tagStart = i;
+                i = ByteScanner.skipTag(bytes, i + 2, size);
+                if(i < 0 || --depth < 0) return null;
+                if(depth == 0) {
+                    if(count == 0) return null;
+                    splits = ByteScanner.set(splits, count++, tagStart);
+                    return Arrays.copyOf(splits, count);
+                }
+                if(depth == 1 && i - splits[count - 1] >= chunkSize)
+                    splits = ByteScanner.set(splits, count++, i);
+            }
+            else if(ByteScanner.isStartNameByte(next)) {
+                i = ByteScanner.skipTag(bytes, i + 2, size);
+                if(i < 0) return null;
+                if(bytes.get(i - 2) == '/') {
+                    // Self-closing
+                    if(depth == 0) return null;
+                    if(depth == 1 && i - splits[count - 1] >= chunkSize)
+                        splits = ByteScanner.set(splits, count++, i);
+                }
+                else if(depth++ == 0) {
+                    if(count != 0) return null; // Multiple root elements
+                    splits = ByteScanner.set(splits, count++, i);
+                }
+            }
+            else i++; // Unescaped '<' in text
+            if(i < 0) return null;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,209 @@
+package de.rccookie.xml;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and timings collected while parsing. Metrics are opt-in: a metrics
+ * object can be set on a parser using {@link XMLParser#setMetrics(ParseMetrics)},
+ * or passed to one of the <code>XML.parse()</code> methods accepting one. The
+ * values can be read at any time, after {@link XMLParser#parseAll()} they include
+ * the complete document.
+ * <p>A metrics object can be shared between multiple parsers, also between parsers
+ * running concurrently, to aggregate the metrics of all of them. Collecting metrics
+ * adds a small overhead per parsed node, mostly for reading the clock.</p>
+ * <p>The timings are disjoint: tokenizing does not include entity decoding that
+ * happens while tokenizing, and tree building only counts the time spent creating
+ * and linking nodes. Text nodes decode their entities lazily when their text is
+ * first requested, that decoding happens outside of parsing and is not included.</p>
+ */
+public final class ParseMetrics {
+
+    final LongAdder documents = new LongAdder();
+    final LongAdder chars = new LongAdder();
+    final LongAdder elements = new LongAdder();
+    final LongAdder texts = new LongAdder();
+    final LongAdder comments = new LongAdder();
+    final LongAdder attributes = new LongAdder();
+    final LongAdder entityDecodes = new LongAdder();
+    final LongAdder warnings = new LongAdder();
+    final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+    final LongAdder tokenizeNanos = new LongAdder();
+    final LongAdder treeBuildNanos = new LongAdder();
+    final LongAdder decodeNanos = new LongAdder();
+
+
+    /**
+     * Returns the number of documents that have been parsed completely, using
+     * {@link XMLParser#parseAll()} or {@link XMLParser#parse(XMLHandler)}.
+     *
+     * @return The number of parsed documents
+     */
+    public long getDocuments() {
+        return documents.sum();
+    }
+
+    /**
+     * Returns the number of characters consumed from the input. Characters of
+     * partially parsed inputs are counted once the parser is closed or reset.
+     *
+     * @return The number of consumed characters
+     */
+    public long getChars() {
+        return chars.sum();
+    }
+
+    /**
+     * Returns the number of elements parsed. Elements skipped by an element filter
+     * are not counted.
+     *
+     * @return The number of parsed elements
+     */
+    public long getElements() {
+        return elements.sum();
+    }
+
+    /**
+     * Returns the number of text nodes parsed.
+     *
+     * @return The number of parsed text nodes
+     */
+    public long getTexts() {
+        return texts.sum();
+    }
+
+    /**
+     * Returns the number of comments parsed.
+     *
+     * @return The number of parsed comments
+     */
+    public long getComments() {
+        return comments.sum();
+    }
+
+    /**
+     * Returns the number of attributes of all parsed elements.
+     *
+     * @return The number of parsed attributes
+     */
+    public long getAttributes() {
+        return attributes.sum();
+    }
+
+    /**
+     * Returns the number of attribute values and texts that contained character
+     * references. Texts are counted even though they are decoded lazily.
+     *
+     * @return The number of values with character references
+     */
+    public long getEntityDecodes() {
+        return entityDecodes.sum();
+    }
+
+    /**
+     * Returns the number of warnings emitted for fixed errors.
+     *
+     * @return The number of warnings
+     */
+    public long getWarnings() {
+        return warnings.sum();
+    }
+
+    /**
+     * Returns the maximum nesting depth of any parsed element. Root elements have
+     * a depth of 1.
+     *
+     * @return The maximum element depth
+     */
+    public long getMaxDepth() {
+        return maxDepth.get();
+    }
+
+    /**
+     * Returns the time spent tokenizing the input, excluding entity decoding.
+     *
+     * @return The tokenizing time, in nanoseconds
+     */
+    public long getTokenizeNanos() {
+        return tokenizeNanos.sum();
+    }
+
+    /**
+     * Returns the time spent creating and linking nodes. This is <code>0</code>
+     * when parsing events or with a handler.
+     *
+     * @return The tree building time, in nanoseconds
+     */
+    public long getTreeBuildNanos() {
+        return treeBuildNanos.sum();
+    }
+
+    /**
+     * Returns the time spent decoding character references while parsing.
+     *
+     * @return The entity decoding time, in nanoseconds
+     */
+    public long getDecodeNanos() {
+        return decodeNanos.sum();
+    }
+
+    /**
+     * Adds all values of the given metrics to this metrics object, and takes the
+     * maximum of both maximum depths.
+     *
+     * @param other The metrics to add
+     * @return This metrics object
+     */
+    public ParseMetrics add(ParseMetrics other) {
+        documents.add(other.getDocuments());
+        chars.add(other.getChars());
+        elements.add(other.getElements());
+        texts.add(other.getTexts());
+        comments.add(other.getComments());
+        attributes.add(other.getAttributes());
+        entityDecodes.add(other.getEntityDecodes());
+        warnings.add(other.getWarnings());
+        maxDepth.accumulate(other.getMaxDepth());
+        tokenizeNanos.add(other.getTokenizeNanos());
+        treeBuildNanos.add(other.getTreeBuildNanos());
+        decodeNanos.add(other.getDecodeNanos());
+        return this;
+    }
+
+    /**
+     * Resets all values to <code>0</code>. Values recorded concurrently to the reset
+     * may or may not be included afterwards.
+     */
+    public void reset() {
+        documents.reset();
+        chars.reset();
+        elements.reset();
+        texts.reset();
+        comments.reset();
+        attributes.reset();
+        entityDecodes.reset();
+        warnings.reset();
+        maxDepth.reset();
+        tokenizeNanos.reset();
+        treeBuildNanos.reset();
+        decodeNanos.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "ParseMetrics{" +
+                "documents=" + getDocuments() +
+                ", chars=" + getChars() +
+                ", elements=" + getElements() +
+                ", texts=" + getTexts() +
+                ", comments=" + getComments() +
+                ", attributes=" + getAttributes() +
+                ", entityDecodes=" + getEntityDecodes() +
+                ", warnings=" + getWarnings() +
+                ", maxDepth=" + getMaxDepth() +
+                ", tokenizeNanos=" + getTokenizeNanos() +
+                ", treeBuildNanos=" + getTreeBuildNanos() +
+                ", decodeNanos=" + getDecodeNanos() +
+                '}';
+    }
+}
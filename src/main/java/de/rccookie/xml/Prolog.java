@@ -51,7 +51,7 @@ public class Prolog extends Node {
     }
 
     @Override
-    void toString(StringBuilder str, FormattingOptions options) {
+    void toString(XMLWriter str, FormattingOptions options) {
         str.append("<?").append(tag);
         attributes.forEach((k,v) -> str.append(' ').append(k).append('=').append('"').append(v.replace("\"", "&quot;")).append('"'));
         str.append("?>");
@@ -66,7 +66,7 @@ public class Prolog extends Node {
     }
 
     @Override
-    void innerXML(StringBuilder str, FormattingOptions options) {
+    void innerXML(XMLWriter str, FormattingOptions options) {
         // No inner value
     }
 
@@ -0,0 +1,176 @@
+package de.rccookie.xml;
+
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * A table of canonical string instances for tag names and attribute keys. The
+ * parser looks up names directly from its input buffer, so that each distinct
+ * name is only allocated once, and all elements with the same tag or attribute
+ * share the same string instance. Every table is pre-seeded with the html tags
+ * and common attribute names.
+ * <p>By default, every parser uses its own symbol table. A symbol table can be
+ * shared between multiple parsers using {@link XMLParser#setSymbolTable(SymbolTable)},
+ * also between parsers running concurrently. The number of symbols is limited, once
+ * a table is full, new names are no longer added to it.</p>
+ */
+public final class SymbolTable {
+
+    /**
+     * Attribute names the table gets pre-seeded with, in addition to the html tags.
+     */
+    private static final Set<String> COMMON_ATTRIBUTES = Set.of("id", "class", "style", "href", "src", "alt", "title", "type", "name", "value",
+            "rel", "content", "charset", "lang", "width", "height", "action", "method", "for", "target", "role", "colspan", "rowspan", "placeholder",
+            "disabled", "checked", "selected", "async", "defer", "crossorigin", "integrity", "media", "property", "http-equiv", "xmlns", "xmlns:xlink",
+            "xlink:href", "version", "encoding", "standalone", "tabindex", "label", "loading", "srcset", "sizes", "aria-label", "aria-hidden",
+            "d", "fill", "stroke", "transform", "x", "y");
+    /**
+     * Names longer than this are not added to the table.
+     */
+    private static final int MAX_SYMBOL_LENGTH = 64;
+    /**
+     * The maximum number of symbols in a table.
+     */
+    private static final int MAX_SIZE = 1 << 14;
+    /**
+     * The table new tables are copied from.
+     */
+    private static final SymbolTable SEED = new SymbolTable(512);
+    static {
+        XMLParser.HTML_TAGS.forEach(SEED::add);
+        COMMON_ATTRIBUTES.forEach(SEED::add);
+    }
+
+    /**
+     * The hash table with linear probing. Lookups read it without locking, it is only
+     * modified while holding the lock of this table. Slots are only ever set once, and
+     * strings are immutable, so a lookup either sees an entry completely or not at all.
+     */
+    private volatile String[] table;
+    /**
+     * Number of symbols in the table.
+     */
+    private int size;
+
+
+    /**
+     * Creates a new symbol table, pre-seeded with the html tags and common attribute
+     * names.
+     */
+    public SymbolTable() {
+        synchronized(SEED) {
+            table = SEED.table.clone();
+            size = SEED.size;
+        }
+    }
+
+    private SymbolTable(int capacity) {
+        table = new String[capacity];
+    }
+
+
+    /**
+     * Returns the number of symbols in this table.
+     *
+     * @return The size of the table
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns the canonical instance of the given name.
+     *
+     * @param name The name to get the symbol for
+     * @return The canonical instance of an equal string, or the given string if the
+     *         table does not contain it and is full
+     */
+    public String get(String name) {
+        char[] chars = name.toCharArray();
+        return get(chars, 0, chars.length, false);
+    }
+
+    /**
+     * Returns the canonical instance of the name in the given range of characters,
+     * allocating a new string only if the name is not in the table yet.
+     *
+     * @param chars The characters to read from
+     * @param offset The index of the first character of the name
+     * @param length The length of the name
+     * @param toLowerCase Whether to convert the name to lowercase
+     * @return The symbol
+     */
+    String get(char[] chars, int offset, int length, boolean toLowerCase) {
+        if(length > MAX_SYMBOL_LENGTH)
+            return toString(chars, offset, length, toLowerCase);
+
+        int hash = 0;
+        for(int i=offset, end=offset+length; i<end; i++) {
+            char c = chars[i];
+            if(toLowerCase) {
+                if(c >= 'A' && c <= 'Z') c += 'a' - 'A';
+                else if(c >= 0x80) // Non-ascii case conversion may change the length
+                    return add(toString(chars, offset, length, true));
+            }
+            hash = 31 * hash + c;
+        }
+
+        String[] table = this.table;
+        for(int i = index(hash, table.length);; i = (i + 1) & (table.length - 1)) {
+            String symbol = table[i];
+            if(symbol == null) break;
+            if(symbol.hashCode() == hash && matches(symbol, chars, offset, length, toLowerCase))
+                return symbol;
+        }
+        return add(toString(chars, offset, length, toLowerCase));
+    }
+
+    /**
+     * Adds the given name to the table, if no equal symbol is present yet and the table
+     * is not full.
+     *
+     * @param name The name to add
+     * @return The canonical instance of the name
+     */
+    private synchronized String add(String name) {
+        String[] table = this.table;
+        int i = index(name.hashCode(), table.length);
+        for(String symbol; (symbol = table[i]) != null; i = (i + 1) & (table.length - 1))
+            if(symbol.equals(name)) return symbol;
+
+        if(size >= MAX_SIZE) return name;
+        if(++size * 2 > table.length) {
+            String[] resized = new String[table.length * 2];
+            for(String symbol : table) if(symbol != null) {
+                int j = index(symbol.hashCode(), resized.length);
+                while(resized[j] != null) j = (j + 1) & (resized.length - 1);
+                resized[j] = symbol;
+            }
+            i = index(name.hashCode(), resized.length);
+            while(resized[i] != null) i = (i + 1) & (resized.length - 1);
+            resized[i] = name;
+            this.table = resized;
+        }
+        else table[i] = name;
+        return name;
+    }
+
+    private static int index(int hash, int capacity) {
+        return (hash ^ (hash >>> 16)) & (capacity - 1);
+    }
+
+    private static boolean matches(String symbol, char[] chars, int offset, int length, boolean toLowerCase) {
+        if(symbol.length() != length) return false;
+        for(int i=0; i<length; i++) {
+            char c = chars[offset + i];
+            if(toLowerCase && c >= 'A' && c <= 'Z') c += 'a' - 'A';
+            if(symbol.charAt(i) != c) return false;
+        }
+        return true;
+    }
+
+    private static String toString(char[] chars, int offset, int length, boolean toLowerCase) {
+        String str = new String(chars, offset, length);
+        return toLowerCase ? str.toLowerCase(Locale.ROOT) : str;
+    }
+}
@@ -0,0 +1,94 @@
+package de.rccookie.xml;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Internal class for the stack of currently open elements while parsing. In
+ * addition to the stack itself, it counts how many elements of each tag are
+ * open, ignoring case, so that the parser can check in constant time whether
+ * a closing tag closes any of the open elements.
+ */
+final class TagStack implements Iterable<String> {
+
+    /**
+     * The tags of the open elements, the innermost element first.
+     */
+    private final Deque<String> tags = new ArrayDeque<>();
+    /**
+     * The number of open elements per lowercase tag. Tags are removed once no
+     * element with that tag is open anymore.
+     */
+    private final Map<String, int[]> openCounts = new HashMap<>();
+
+
+    /**
+     * Pushes the given tag as innermost open element.
+     *
+     * @param tag The tag to push
+     */
+    void push(String tag) {
+        tags.push(tag);
+        openCounts.computeIfAbsent(tag.toLowerCase(Locale.ROOT), t -> new int[1])[0]++;
+    }
+
+    /**
+     * Removes the innermost open element.
+     *
+     * @return The tag of the removed element
+     */
+    String pop() {
+        String tag = tags.pop();
+        String key = tag.toLowerCase(Locale.ROOT);
+        if(--openCounts.get(key)[0] == 0)
+            openCounts.remove(key);
+        return tag;
+    }
+
+    /**
+     * Returns the tag of the innermost open element.
+     *
+     * @return The innermost tag, or <code>null</code> if no element is open
+     */
+    String peek() {
+        return tags.peek();
+    }
+
+    /**
+     * Returns whether an element with the given tag is open, ignoring case.
+     *
+     * @param tag The tag to check
+     * @return Whether such an element is open
+     */
+    boolean containsIgnoreCase(String tag) {
+        return openCounts.containsKey(tag.toLowerCase(Locale.ROOT));
+    }
+
+    boolean isEmpty() {
+        return tags.isEmpty();
+    }
+
+    int size() {
+        return tags.size();
+    }
+
+    void clear() {
+        tags.clear();
+        openCounts.clear();
+    }
+
+    /**
+     * Returns an iterator over the tags of the open elements, from the innermost
+     * element to the root.
+     *
+     * @return An iterator over the open tags
+     */
+    @Override
+    public Iterator<String> iterator() {
+        return tags.iterator();
+    }
+}
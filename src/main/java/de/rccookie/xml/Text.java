@@ -18,10 +18,29 @@ public class Text extends Node {
     }
 
     /**
-     * The text.
+     * Format flag for text that still contains entities to be decoded.
+     */
+    static final int DECODE = 1;
+    /**
+     * Format flag for text whose whitespace sequences still have to be collapsed
+     * into single spaces.
+     */
+    static final int NORMALIZE_WHITESPACES = 1 << 1;
+
+    /**
+     * The text, or <code>null</code> if {@link #raw} has not been formatted yet.
      */
-    @NotNull
     private String text;
+    /**
+     * The text as found in the source, to be formatted according to {@link #format}
+     * when the text is first needed. Released once {@link #text} has been set, which
+     * happens before this is set to <code>null</code>.
+     */
+    private volatile String raw;
+    /**
+     * The format flags to apply to {@link #raw}.
+     */
+    private final byte format;
 
     /**
      * Creates a new text node with the given text content.
@@ -29,23 +48,41 @@ public class Text extends Node {
      * @param text The text content
      */
     public Text(@NotNull String text) {
+        this(Arguments.checkNull(text), 0);
+    }
+
+    /**
+     * Creates a new text node with the given text as found in the source. The text
+     * only gets formatted when it is first needed.
+     *
+     * @param raw The text in the source
+     * @param format The format flags to apply to the text, {@link #DECODE} and
+     *               {@link #NORMALIZE_WHITESPACES}
+     */
+    Text(@NotNull String raw, int format) {
         super("text", AttributeMap.EMPTY, Collections.emptyList());
-        this.text = Arguments.checkNull(text);
+        this.format = (byte) format;
+        if(format == 0) this.text = raw;
+        else this.raw = raw;
     }
 
     @Override
     public @NotNull Node clone() {
-        return new Text(text);
+        String text = this.text;
+        if(text != null) return new Text(text);
+        String raw = this.raw;
+        // Formatted concurrently, raw released after setting the text
+        return raw != null ? new Text(raw, format) : new Text(this.text);
     }
 
     @Override
     public boolean equals(Object o) {
-        return o instanceof Text && ((Text) o).text.equals(text);
+        return o instanceof Text && ((Text) o).text().equals(text());
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(text);
+        return Objects.hash(text());
     }
 
     /**
@@ -55,6 +92,7 @@ public class Text extends Node {
      */
     public void setText(@NotNull String text) {
         this.text = Arguments.checkNull(text);
+        raw = null;
     }
 
     /**
@@ -64,11 +102,64 @@ public class Text extends Node {
      */
     @Override
     public @NotNull String text() {
+        String text = this.text;
+        if(text != null) return text;
+        String raw = this.raw;
+        // Formatted concurrently, raw released after setting the text
+        if(raw == null) return this.text;
+        // Formatting twice concurrently is harmless
+        this.text = text = format(raw, format);
+        this.raw = null;
         return text;
     }
 
+    /**
+     * Formats the given text as found in the source.
+     *
+     * @param raw The text to format
+     * @param format The format flags to apply, {@link #DECODE} and {@link #NORMALIZE_WHITESPACES}
+     * @return The formatted text
+     */
+    static String format(String raw, int format) {
+        String text = (format & NORMALIZE_WHITESPACES) != 0 ? normalizeWhitespaces(raw) : raw;
+        return (format & DECODE) != 0 ? XMLEncoder.decode(text) : text;
+    }
+
+    /**
+     * Replaces each sequence of whitespaces (space, tab, newline, line tabulation,
+     * form feed and carriage return) with a single space.
+     *
+     * @param str The string to normalize
+     * @return The normalized string, the same instance if no changes were needed
+     */
+    private static String normalizeWhitespaces(String str) {
+        int length = str.length(), i = 0;
+        for(; i<length; i++) {
+            char c = str.charAt(i);
+            if(isSpace(c) && (c != ' ' || (i + 1 < length && isSpace(str.charAt(i + 1)))))
+                break;
+        }
+        if(i == length) return str;
+
+        StringBuilder normalized = new StringBuilder(length).append(str, 0, i);
+        while(i < length) {
+            char c = str.charAt(i++);
+            if(isSpace(c)) {
+                normalized.append(' ');
+                while(i < length && isSpace(str.charAt(i))) i++;
+            }
+            else normalized.append(c);
+        }
+        return normalized.toString();
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || (c >= '\t' && c <= '\r'); // Tab, newline, line tabulation, form feed, carriage return
+    }
+
     @Override
-    void toString(StringBuilder str, FormattingOptions options) {
+    void toString(XMLWriter str, FormattingOptions options) {
+        String text = text();
         boolean parentCode = options.html && parent != null && parent.tag.equals("code");
 //        String text = html && !parentCode ? this.text.replaceAll("\\s+", " ") : this.text;
         if(parent != null && parent.tag.equals("script")) {
@@ -76,18 +167,18 @@ public class Text extends Node {
                 str.append(text.replace("&", XMLEncoder.encode("&")).replace("<", XMLEncoder.encode("<")));
             else str.append(text.replace("</script>", "</script\\>"));
         }
-        else if(!parentCode && options.formatted) str.append(XMLEncoder.encode(text).replace("\n", '\n' + "  ".repeat(options.indent)));
+        else if(!parentCode && options.formatted) XMLEncoder.encode(text, str, options.indent);
         else XMLEncoder.encode(text, str);
     }
 
     @Override
     public Object toJson() {
-        return text;
+        return text();
     }
 
     @Override
     boolean removeBlankText0() {
-        if(text.isBlank()) {
+        if(text().isBlank()) {
             setParent(null);
             return true;
         }
@@ -95,7 +186,7 @@ public class Text extends Node {
     }
 
     @Override
-    void innerXML(StringBuilder str, FormattingOptions options) {
+    void innerXML(XMLWriter str, FormattingOptions options) {
         toString(str, options);
     }
 
@@ -0,0 +1,148 @@
+package de.rccookie.xml;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.MalformedInputException;
+
+/**
+ * Internal base class for readers that decode UTF-8 bytes from a byte buffer
+ * directly into the caller's character array. Pure ASCII runs are copied with
+ * a simple widening loop. Subclasses provide the bytes in consecutive windows.
+ * Malformed input is either reported with a {@link MalformedInputException}, like
+ * the reader returned by {@link java.nio.file.Files#newBufferedReader(java.nio.file.Path)},
+ * or replaced with the replacement character U+FFFD, like an
+ * {@link java.io.InputStreamReader} does.
+ */
+abstract class UTF8Reader extends Reader {
+
+    /**
+     * The current window of bytes, from its position up to its limit.
+     */
+    ByteBuffer bytes;
+    /**
+     * Low surrogate of a supplementary character that did not fit into the
+     * previous read, or <code>0</code>.
+     */
+    private char pendingLowSurrogate = 0;
+    /**
+     * Whether malformed input is replaced instead of reported.
+     */
+    private final boolean replaceMalformed;
+
+
+    /**
+     * Creates a new reader.
+     *
+     * @param replaceMalformed Whether to replace malformed input with U+FFFD
+     *                         instead of throwing a {@link MalformedInputException}
+     */
+    UTF8Reader(boolean replaceMalformed) {
+        this.replaceMalformed = replaceMalformed;
+    }
+
+    /**
+     * Moves on to the next window of bytes. The new window has to start with the
+     * unread bytes of the current one, and, unless it is the last window, has to
+     * contain at least 4 bytes, so that no character is split between windows.
+     *
+     * @return Whether there are any more bytes to read
+     * @throws IOException If an I/O error occurs
+     */
+    abstract boolean nextWindow() throws IOException;
+
+    /**
+     * Returns whether the current window contains all remaining bytes of the input.
+     *
+     * @return Whether the current window is the last one
+     */
+    abstract boolean isLastWindow();
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if(len == 0) return 0;
+
+        int i = off, stop = off + len;
+        if(pendingLowSurrogate != 0) {
+            cbuf[i++] = pendingLowSurrogate;
+            pendingLowSurrogate = 0;
+        }
+
+        ByteBuffer bytes = this.bytes;
+        int p = bytes.position(), limit = bytes.limit();
+        boolean last = isLastWindow();
+
+        while(i < stop) {
+            if(p == limit || (!last && limit - p < 4)) {
+                bytes.position(p);
+                boolean more = nextWindow();
+                bytes = this.bytes;
+                p = bytes.position();
+                limit = bytes.limit();
+                last = isLastWindow();
+                if(!more) break;
+                continue;
+            }
+
+            int b0 = bytes.get(p);
+            if(b0 >= 0) {
+                // ASCII run
+                cbuf[i++] = (char) b0;
+                p++;
+                for(int end = Math.min(limit, p + stop - i); p < end; p++) {
+                    byte b = bytes.get(p);
+                    if(b < 0) break;
+                    cbuf[i++] = (char) b;
+                }
+                continue;
+            }
+
+            int count = (b0 & 0xE0) == 0xC0 ? 2 : (b0 & 0xF0) == 0xE0 ? 3 : (b0 & 0xF8) == 0xF0 ? 4 : 0;
+            int cp = b0 & (0x7F >> count), malformed = 0;
+            if(count == 0 || limit - p < count) malformed = 1;
+            else {
+                for(int j=1; j<count; j++) {
+                    int b = bytes.get(p + j);
+                    if((b & 0xC0) != 0x80) {
+                        malformed = j;
+                        break;
+                    }
+                    cp = (cp << 6) | (b & 0x3F);
+                }
+                if(malformed == 0 && (count == 2 ? cp < 0x80 : count == 3 ? cp < 0x800 || Character.isSurrogate((char) cp)
+                        : cp < Character.MIN_SUPPLEMENTARY_CODE_POINT || cp > Character.MAX_CODE_POINT))
+                    malformed = count;
+            }
+
+            if(malformed != 0) {
+                if(!replaceMalformed) throw malformed(p, malformed);
+                cbuf[i++] = '\uFFFD';
+                p += malformed;
+                continue;
+            }
+            if(count != 4)
+                cbuf[i++] = (char) cp;
+            else {
+                cbuf[i++] = Character.highSurrogate(cp);
+                if(i < stop) cbuf[i++] = Character.lowSurrogate(cp);
+                else pendingLowSurrogate = Character.lowSurrogate(cp);
+            }
+            p += count;
+        }
+        bytes.position(p);
+
+        return i == off ? -1 : i - off;
+    }
+
+    /**
+     * Creates an exception for malformed input at the given position.
+     *
+     * @param position The position of the malformed sequence in the current window
+     * @param length The length of the malformed sequence
+     * @return The exception to throw
+     */
+    private MalformedInputException malformed(int position, int length) {
+        bytes.position(position);
+        return new MalformedInputException(length);
+    }
+}
@@ -0,0 +1,83 @@
+package de.rccookie.xml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Internal reader that decodes a UTF-8 encoded input stream. The stream is read
+ * into a single byte array, which is decoded directly into the caller's character
+ * array, so unlike an {@link java.io.InputStreamReader} there is no intermediate
+ * character buffer. The reader can start with bytes already read from the stream,
+ * for example to detect its charset. Malformed input is replaced with U+FFFD.
+ */
+final class UTF8StreamReader extends UTF8Reader {
+
+    /**
+     * Size of the byte buffer.
+     */
+    private static final int BUFFER_SIZE = 1 << 13;
+
+    /**
+     * The input stream to read from.
+     */
+    private final InputStream in;
+    /**
+     * Whether the end of the stream has been reached.
+     */
+    private boolean eof = false;
+
+
+    /**
+     * Creates a new reader over the given stream, that first decodes the given
+     * bytes already read from the stream.
+     *
+     * @param head Bytes already read from the stream
+     * @param offset The index of the first byte in <code>head</code> to decode
+     * @param length The number of bytes in <code>head</code>
+     * @param in The stream to read the remaining bytes from
+     */
+    UTF8StreamReader(byte[] head, int offset, int length, InputStream in) {
+        super(true);
+        this.in = in;
+        byte[] buf = Arrays.copyOf(head, Math.max(length, BUFFER_SIZE));
+        bytes = ByteBuffer.wrap(buf, offset, length - offset);
+    }
+
+    @Override
+    boolean isLastWindow() {
+        return eof;
+    }
+
+    /**
+     * Moves the unread bytes to the start of the buffer and fills the rest of it
+     * from the stream, until at least 4 bytes are available or the end of the
+     * stream is reached.
+     *
+     * @return Whether there are any bytes to read
+     */
+    @Override
+    boolean nextWindow() throws IOException {
+        bytes.compact();
+        byte[] buf = bytes.array();
+        int length = bytes.position();
+        while(!eof && length < 4) {
+            int read = in.read(buf, length, buf.length - length);
+            if(read < 0) eof = true;
+            else length += read;
+        }
+        bytes.position(0).limit(length);
+        return length != 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    @Override
+    public String toString() {
+        return "UTF8StreamReader{" + in + "}";
+    }
+}
@@ -1,20 +1,29 @@
 package de.rccookie.xml;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.Reader;
-import java.io.StringReader;
+import java.io.SequenceInputStream;
 import java.io.UncheckedIOException;
 import java.io.Writer;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
+import de.rccookie.util.Arguments;
 import org.intellij.lang.annotations.Language;
 
 /**
@@ -50,6 +59,25 @@ public final class XML {
      * <p>This is both a parsing and an output flag.</p>
      */
     public static final long ALLOW_DOUBLE_DASH_IN_COMMENT = 1 << 5;
+    /**
+     * Parse large files using multiple threads, when parsing a file using
+     * {@link #parse(Path, long)} or {@link #parse(File, long)}. The resulting
+     * document is identical to the one parsed sequentially. Documents that are not
+     * in plain xml syntax or cannot be split safely are parsed sequentially.
+     * <p>This is a parsing flag.</p>
+     */
+    public static final long PARALLEL = 1 << 6;
+    /**
+     * Parse files lazily, when parsing a file using {@link #parse(Path, long)} or
+     * {@link #parse(File, long)}. The children of an element are only parsed when
+     * they are first accessed, so reading a few elements of a large document does
+     * not require parsing all of it. Documents that are not in plain xml syntax or
+     * whose elements are not properly nested are parsed right away. Syntax errors
+     * within deferred content are only reported once that content is accessed.
+     * This flag takes precedence over {@link #PARALLEL}.
+     * <p>This is a parsing flag.</p>
+     */
+    public static final long LAZY = 1 << 7;
 
     // Writing
 
@@ -185,6 +213,13 @@ public final class XML {
 
 
 
+    /**
+     * A parser per thread that is reused by the parsing methods that consume the
+     * complete input, while it is not in use.
+     */
+    private static final ThreadLocal<XMLParser> REUSABLE_PARSER = new ThreadLocal<>();
+
+
     private XML() {
         throw new UnsupportedOperationException();
     }
@@ -208,7 +243,20 @@ public final class XML {
      * @return The parsed document
      */
     public static Document parse(String xml, long options) {
-        return getParser(xml, options).parseAll();
+        return parse((CharSequence) xml, options);
+    }
+
+    /**
+     * Parses the given characters directly, without copying them into a string
+     * first. The input must not be modified while it is being parsed.
+     *
+     * @param xml The xml characters to parse, for example a {@link StringBuilder}
+     *            or a {@link java.nio.CharBuffer}
+     * @param options Parsing options
+     * @return The parsed document
+     */
+    public static Document parse(CharSequence xml, long options) {
+        return withReusableParser(Arguments.checkNull(xml, "xml"), options, XMLParser::parseAll);
     }
 
     /**
@@ -292,6 +340,10 @@ public final class XML {
      * @return The parsed document
      */
     public static Document parse(Path file, long options) {
+        if((options & LAZY) != 0)
+            return LazyXMLParser.parse(file, options, null);
+        if((options & PARALLEL) != 0)
+            return ParallelXMLParser.parse(file, options, null);
         return getParser(file, options).parseAll();
     }
 
@@ -306,7 +358,8 @@ public final class XML {
     }
 
     /**
-     * Parses the given input stream.
+     * Parses the given input stream. The charset of the input is detected from its
+     * first bytes, see {@link #getParser(InputStream, long)}.
      *
      * @param in The input stream to parse
      * @param options Parsing options
@@ -334,11 +387,250 @@ public final class XML {
      * @return The parsed document
      */
     public static Document parse(Reader reader, long options) {
-        return getParser(reader, options).parseAll();
+        return withReusableParser(reader, options, XMLParser::parseAll);
+    }
+
+    /**
+     * Parses the given characters, recording counters and timings into the given
+     * metrics.
+     *
+     * @param xml The xml characters to parse
+     * @param options Parsing options
+     * @param metrics The metrics to record into
+     * @return The parsed document
+     */
+    public static Document parse(CharSequence xml, long options, ParseMetrics metrics) {
+        Arguments.checkNull(xml, "xml");
+        Arguments.checkNull(metrics, "metrics");
+        return withReusableParser(xml, options, parser -> parser.setMetrics(metrics).parseAll());
+    }
+
+    /**
+     * Parses the given file, recording counters and timings into the given metrics.
+     *
+     * @param file The xml file to parse
+     * @param options Parsing options
+     * @param metrics The metrics to record into
+     * @return The parsed document
+     */
+    public static Document parse(File file, long options, ParseMetrics metrics) {
+        return parse(file.toPath(), options, metrics);
+    }
+
+    /**
+     * Parses the given file, recording counters and timings into the given metrics.
+     * With the {@link #LAZY} flag, deferred content is recorded once it is parsed.
+     *
+     * @param file The xml file to parse
+     * @param options Parsing options
+     * @param metrics The metrics to record into
+     * @return The parsed document
+     */
+    public static Document parse(Path file, long options, ParseMetrics metrics) {
+        Arguments.checkNull(metrics, "metrics");
+        if((options & LAZY) != 0)
+            return LazyXMLParser.parse(file, options, metrics);
+        if((options & PARALLEL) != 0)
+            return ParallelXMLParser.parse(file, options, metrics);
+        return getParser(file, options).setMetrics(metrics).parseAll();
+    }
+
+    /**
+     * Parses the given input stream, recording counters and timings into the given
+     * metrics.
+     *
+     * @param in The input stream to parse
+     * @param options Parsing options
+     * @param metrics The metrics to record into
+     * @return The parsed document
+     */
+    public static Document parse(InputStream in, long options, ParseMetrics metrics) {
+        Arguments.checkNull(metrics, "metrics");
+        return getParser(in, options).setMetrics(metrics).parseAll();
+    }
+
+    /**
+     * Parses the given reader, recording counters and timings into the given metrics.
+     *
+     * @param reader The reader to parse
+     * @param options Parsing options
+     * @param metrics The metrics to record into
+     * @return The parsed document
+     */
+    public static Document parse(Reader reader, long options, ParseMetrics metrics) {
+        Arguments.checkNull(reader, "reader");
+        Arguments.checkNull(metrics, "metrics");
+        return withReusableParser(reader, options, parser -> parser.setMetrics(metrics).parseAll());
+    }
+
+    /**
+     * Parses the given string, passing its content to the given handler instead of
+     * building a document.
+     *
+     * @param xml The xml string to parse
+     * @param options Parsing options
+     * @param handler The handler to receive the parsed content
+     */
+    public static void parse(String xml, long options, XMLHandler handler) {
+        parse((CharSequence) xml, options, handler);
+    }
+
+    /**
+     * Parses the given characters directly, passing their content to the given
+     * handler instead of building a document. The input must not be modified while
+     * it is being parsed.
+     *
+     * @param xml The xml characters to parse
+     * @param options Parsing options
+     * @param handler The handler to receive the parsed content
+     */
+    public static void parse(CharSequence xml, long options, XMLHandler handler) {
+        Arguments.checkNull(xml, "xml");
+        Arguments.checkNull(handler, "handler");
+        withReusableParser(xml, options, parser -> {
+            parser.parse(handler);
+            return null;
+        });
+    }
+
+    /**
+     * Parses the given file, passing its content to the given handler instead of
+     * building a document.
+     *
+     * @param file The xml file to parse
+     * @param options Parsing options
+     * @param handler The handler to receive the parsed content
+     */
+    public static void parse(File file, long options, XMLHandler handler) {
+        getParser(file, options).parse(handler);
+    }
+
+    /**
+     * Parses the given file, passing its content to the given handler instead of
+     * building a document.
+     *
+     * @param file The xml file to parse
+     * @param options Parsing options
+     * @param handler The handler to receive the parsed content
+     */
+    public static void parse(Path file, long options, XMLHandler handler) {
+        getParser(file, options).parse(handler);
+    }
+
+    /**
+     * Parses the given input stream, passing its content to the given handler instead of
+     * building a document. The first bytes of the stream are read right away to detect
+     * its charset, see {@link #getParser(InputStream, long)}.
+     *
+     * @param in The input stream to parse
+     * @param options Parsing options
+     * @param handler The handler to receive the parsed content
+     */
+    public static void parse(InputStream in, long options, XMLHandler handler) {
+        getParser(in, options).parse(handler);
+    }
+
+    /**
+     * Parses the given reader, passing its content to the given handler instead of
+     * building a document.
+     *
+     * @param reader The reader to parse
+     * @param options Parsing options
+     * @param handler The handler to receive the parsed content
+     */
+    public static void parse(Reader reader, long options, XMLHandler handler) {
+        Arguments.checkNull(handler, "handler");
+        withReusableParser(reader, options, parser -> {
+            parser.parse(handler);
+            return null;
+        });
+    }
+
+    /**
+     * Runs the given action with a parser for the given input, which is reused from
+     * previous calls on the same thread if possible. The parser must not escape the
+     * action.
+     *
+     * @param reader The input source
+     * @param options Parsing options
+     * @param action The action to run with the parser
+     * @return The result of the action
+     */
+    private static <T> T withReusableParser(Reader reader, long options, Function<XMLParser, T> action) {
+        XMLParser parser = REUSABLE_PARSER.get();
+        if(parser == null) parser = getParser(reader, options);
+        else {
+            REUSABLE_PARSER.set(null); // In use, nested calls have to create their own parser
+            parser.reset(reader, options);
+        }
+        return applyAndRelease(parser, action);
+    }
+
+    /**
+     * Runs the given action with a parser for the given characters, which is reused
+     * from previous calls on the same thread if possible. Small inputs are copied into
+     * the window of the reused parser, so they are parsed without allocating any
+     * buffers. The parser must not escape the action.
+     *
+     * @param xml The input
+     * @param options Parsing options
+     * @param action The action to run with the parser
+     * @return The result of the action
+     */
+    static <T> T withReusableParser(CharSequence xml, long options, Function<XMLParser, T> action) {
+        XMLParser parser = REUSABLE_PARSER.get();
+        if(parser == null) parser = new XMLParser(xml, options);
+        else {
+            REUSABLE_PARSER.set(null); // In use, nested calls have to create their own parser
+            parser.reset(xml, options);
+        }
+        return applyAndRelease(parser, action);
+    }
+
+    /**
+     * Runs the given action with the given reusable parser, and makes the parser
+     * available for reuse afterwards, reset to empty input so that it does not keep
+     * the previous input alive.
+     *
+     * @param parser The parser taken for the action
+     * @param action The action to run with the parser
+     * @return The result of the action
+     */
+    private static <T> T applyAndRelease(XMLParser parser, Function<XMLParser, T> action) {
+        try {
+            return action.apply(parser);
+        } finally {
+            parser.reset("", AUTO);
+            REUSABLE_PARSER.set(parser);
+        }
     }
 
     // ----------------------------------------------
 
+    /**
+     * Creates a non-blocking xml parser that is fed with chunks of input, and passes
+     * the parsed content to the given handler as soon as it is complete.
+     *
+     * @param options Parsing options
+     * @param handler The handler to receive the parsed content
+     * @return A feed parser without any input yet
+     */
+    public static XMLFeedParser getFeedParser(long options, XMLHandler handler) {
+        return new XMLFeedParser(options, Arguments.checkNull(handler, "handler"), null);
+    }
+
+    /**
+     * Creates a non-blocking xml parser that is fed with chunks of input, and passes
+     * each top-level element to the given consumer as soon as it is closed.
+     *
+     * @param options Parsing options
+     * @param nodeConsumer The consumer to receive the parsed elements
+     * @return A feed parser without any input yet
+     */
+    public static XMLFeedParser getFeedParser(long options, Consumer<? super Node> nodeConsumer) {
+        return new XMLFeedParser(options, null, Arguments.checkNull(nodeConsumer, "nodeConsumer"));
+    }
+
     /**
      * Creates a xml parser for the given string.
      *
@@ -357,7 +649,19 @@ public final class XML {
      * @return An unused xml parser
      */
     public static XMLParser getParser(String xml, long options) {
-        return getParser(new StringReader(xml), options);
+        return getParser((CharSequence) xml, options);
+    }
+
+    /**
+     * Creates a xml parser that reads the given characters directly. The input must
+     * not be modified while it is being parsed.
+     *
+     * @param xml The xml characters for the parser to parse
+     * @param options Parsing options
+     * @return An unused xml parser
+     */
+    public static XMLParser getParser(CharSequence xml, long options) {
+        return new XMLParser(Arguments.checkNull(xml, "xml"), options);
     }
 
     /**
@@ -440,7 +744,9 @@ public final class XML {
     }
 
     /**
-     * Creates a xml parser for the given file.
+     * Creates a xml parser for the given file. The charset of the file is detected
+     * from its first bytes, see {@link Document#getCharset()}. UTF-8 encoded files are
+     * memory-mapped, so that they are decoded directly into the parser's buffer.
      *
      * @param file The xml file for the parser to parse
      * @param options Parsing options
@@ -448,7 +754,30 @@ public final class XML {
      */
     public static XMLParser getParser(Path file, long options) {
         try {
-            return getParser(Files.newBufferedReader(file), options);
+            MappedUTF8Reader reader = new MappedUTF8Reader(file);
+            Charset charset;
+            int bom;
+            try {
+                charset = CharsetDetector.detect(reader.bytes);
+                bom = CharsetDetector.bomLength(reader.bytes);
+                if(CharsetDetector.isUTF8(charset)) {
+                    reader.bytes.position(bom);
+                    return new XMLParser(reader, options, charset);
+                }
+            } catch(RuntimeException e) {
+                reader.close();
+                throw e;
+            }
+            reader.close();
+
+            InputStream in = Files.newInputStream(file);
+            try {
+                in.readNBytes(bom);
+                return new XMLParser(new InputStreamReader(in, charset), options, charset);
+            } catch(IOException | RuntimeException e) {
+                in.close();
+                throw e;
+            }
         } catch(IOException e) {
             throw new RuntimeException(e);
         }
@@ -465,14 +794,39 @@ public final class XML {
     }
 
     /**
-     * Creates a xml parser for the given input stream.
+     * Creates a xml parser for the given input stream. The charset of the input is
+     * detected from its first bytes, see {@link Document#getCharset()}. These bytes
+     * are read right away, which blocks until up to 4096 bytes have been read, the end
+     * of the stream is reached, or the bytes read so far determine the charset: they
+     * start with a byte order mark or a complete xml declaration, or contain a
+     * <code>&lt;meta&gt;</code> tag with a charset or the <code>&lt;body&gt;</code> tag.
+     * <p>Malformed input is replaced with the replacement character U+FFFD, like
+     * {@link InputStreamReader} does.</p>
      *
      * @param in The input stream for the parser to parse
      * @param options Parsing options
      * @return An unused xml parser
      */
     public static XMLParser getParser(InputStream in, long options) {
-        return getParser(new InputStreamReader(in), options);
+        try {
+            byte[] head = new byte[CharsetDetector.PRESCAN_LENGTH];
+            int length = 0;
+            while(length < head.length && !CharsetDetector.isDecided(ByteBuffer.wrap(head, 0, length))) {
+                int read = in.read(head, length, head.length - length);
+                if(read < 0) break;
+                length += read;
+            }
+
+            ByteBuffer headBytes = ByteBuffer.wrap(head, 0, length);
+            Charset charset = CharsetDetector.detect(headBytes);
+            int bom = CharsetDetector.bomLength(headBytes);
+            Reader reader = CharsetDetector.isUTF8(charset) ?
+                    new UTF8StreamReader(head, bom, length, in) :
+                    new InputStreamReader(new SequenceInputStream(new ByteArrayInputStream(head, bom, length - bom), in), charset);
+            return new XMLParser(reader, options, charset);
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     /**
@@ -561,7 +915,7 @@ public final class XML {
      * @param options Output options
      */
     public static void write(Node xml, Path file, long options) {
-        try(OutputStream out = Files.newOutputStream(file)) {
+        try(FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
             write(xml, out, options);
         } catch(IOException e) {
             throw new UncheckedIOException(e);
@@ -582,14 +936,44 @@ public final class XML {
 
     /**
      * Writes the given xml tree into the specified output stream. The stream will
-     * not be closed.
+     * not be closed. The output is encoded in the charset declared by the xml
+     * declaration of the document, if any and supported, otherwise in UTF-8.
      *
      * @param xml The xml tree to write
      * @param out The output stream to write to
      * @param options Output options
      */
     public static void write(Node xml, OutputStream out, long options) {
-        write(xml, new OutputStreamWriter(out), options);
+        try(XMLWriter writer = new XMLWriter(out, outputCharset(xml))) {
+            write(xml, writer, options);
+        }
+    }
+
+    /**
+     * Writes the given xml tree into the specified channel. The channel will not
+     * be closed.
+     *
+     * @param xml The xml tree to write
+     * @param out The channel to write to
+     * @param html Whether to format as html
+     */
+    public static void write(Node xml, WritableByteChannel out, boolean html) {
+        write(xml, out, (html ? HTML : XML)|FORMATTED);
+    }
+
+    /**
+     * Writes the given xml tree into the specified channel. The channel will not
+     * be closed. The output is encoded in the charset declared by the xml
+     * declaration of the document, if any and supported, otherwise in UTF-8.
+     *
+     * @param xml The xml tree to write
+     * @param out The channel to write to
+     * @param options Output options
+     */
+    public static void write(Node xml, WritableByteChannel out, long options) {
+        try(XMLWriter writer = new XMLWriter(out, outputCharset(xml))) {
+            write(xml, writer, options);
+        }
     }
 
     /**
@@ -606,19 +990,55 @@ public final class XML {
 
     /**
      * Writes the given xml tree into the specified writer. The writer will
-     * not be closed.
+     * not be closed. The output is streamed into the writer while serializing,
+     * so if serialization fails, part of the output may already have been written.
      *
      * @param xml The xml tree to write
      * @param out The writer to write to
      * @param options Output options
      */
     public static void write(Node xml, Writer out, long options) {
-        try {
-            out.write(xml.toString(options));
-            out.flush();
-        } catch(IOException e) {
-            throw new UncheckedIOException(e);
+        try(XMLWriter writer = new XMLWriter(out)) {
+            write(xml, writer, options);
+        }
+    }
+
+    /**
+     * Writes the given xml tree into the given xml writer and flushes it.
+     *
+     * @param xml The xml tree to write
+     * @param writer The xml writer to write to
+     * @param options Output options
+     */
+    private static void write(Node xml, XMLWriter writer, long options) {
+        XMLEvents.Serialize event = XMLEvents.active() ? new XMLEvents.Serialize() : null;
+        if(event != null) event.begin();
+        xml.toString(writer, FormattingOptions.of(options));
+        writer.flush();
+        if(event != null && event.shouldCommit()) {
+            event.operation = "write";
+            event.tag = xml.tag;
+            event.chars = writer.length();
+            event.options = options;
+            event.commit();
+        }
+    }
+
+    /**
+     * Returns the charset to encode the given xml tree in when writing bytes, which
+     * is the encoding declared by the xml declaration of the document, if any and
+     * supported, otherwise UTF-8.
+     *
+     * @param xml The xml tree to be written
+     * @return The charset to write with
+     */
+    private static Charset outputCharset(Node xml) {
+        if(xml instanceof Document) {
+            XMLDeclaration declaration = ((Document) xml).getXMLDeclaration();
+            Charset charset = declaration != null ? CharsetDetector.forName(declaration.getEncoding()) : null;
+            if(charset != null && charset.canEncode()) return charset;
         }
+        return StandardCharsets.UTF_8;
     }
 
     // -------------------------------------------
@@ -1,10 +1,13 @@
 package de.rccookie.xml;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.Charset;
-import java.util.Collections;
+import java.nio.charset.CharsetEncoder;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.function.Predicate;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Utility class for encoding and decoding strings in an xml document.
@@ -16,18 +19,39 @@ public final class XMLEncoder {
     }
 
     /**
-     * Default predicate to decide whether a character is displayable: Character
-     * is in ASCII charset.
+     * Displayability used if no charset is specified: Character is in ASCII charset.
      */
-    private static final Predicate<Character> DEFAULT_XML_DISPLAYABLE = c -> c < 128;
+    private static final Displayability ASCII_DISPLAYABILITY = new Displayability();
     /**
-     * Maps the name of a named escape sequence to the character it represents.
+     * Displayabilities of the charsets encoded for so far.
      */
-    private static final Map<String, Character> DECODE_LOOKUP;
+    private static final Map<Charset, Displayability> DISPLAYABILITIES = new ConcurrentHashMap<>();
     /**
-     * Maps a character to the name of its named escape sequence, if it exists.
+     * Maximum number of characters between the '&' and the ';' of an escape sequence,
+     * including the ';'.
      */
-    private static final Map<Character, String> ENCODE_LOOKUP;
+    private static final int MAX_REFERENCE_LENGTH = 10;
+    /**
+     * Size of the hash table of named escape sequences, a power of two.
+     */
+    private static final int NAMED_TABLE_SIZE = 1024;
+    /**
+     * The names of the named escape sequences, stored in an open addressing hash table
+     * with linear probing by the {@link #hash(char[], int, int)} of the names. Empty
+     * slots are <code>null</code>.
+     */
+    private static final char[][] NAMED_TABLE_NAMES = new char[NAMED_TABLE_SIZE][];
+    /**
+     * The characters represented by the names in {@link #NAMED_TABLE_NAMES}, at the
+     * same index.
+     */
+    private static final char[] NAMED_TABLE_CHARS = new char[NAMED_TABLE_SIZE];
+    /**
+     * Maps a character to its complete named escape sequence, if it exists, otherwise
+     * the entry is <code>null</code>. Characters beyond the length of the array don't
+     * have a named escape sequence.
+     */
+    private static final String[] ENCODE_LOOKUP = new String[9831];
     // Initialize lookups
     static {
         Map<String,Character> decodeLookup = new HashMap<>(359);
@@ -36,6 +60,7 @@ public final class XMLEncoder {
 //        decodeLookup.put("nbsp", (char) 32);
         decodeLookup.put("quot", (char) 34);
         decodeLookup.put("amp", (char) 38);
+        decodeLookup.put("apos", (char) 39);
         decodeLookup.put("lt", (char) 60);
         decodeLookup.put("gt", (char) 62);
         decodeLookup.put("nbsp", (char) 160);
@@ -390,53 +415,161 @@ public final class XMLEncoder {
         decodeLookup.put("clubs", (char) 9827);
         decodeLookup.put("hearts", (char) 9829);
         decodeLookup.put("diams", (char) 9830);
-        DECODE_LOOKUP = Collections.unmodifiableMap(decodeLookup);
+        decodeLookup.forEach((name, c) -> {
+            char[] chars = name.toCharArray();
+            int index = hash(chars, 0, chars.length);
+            while(NAMED_TABLE_NAMES[index] != null)
+                index = (index + 1) & (NAMED_TABLE_SIZE - 1);
+            NAMED_TABLE_NAMES[index] = chars;
+            NAMED_TABLE_CHARS[index] = c;
+        });
 
-        Map<Character, String> encodeLookup = new HashMap<>();
-        decodeLookup.forEach((k,v) -> encodeLookup.put(v,k));
-        ENCODE_LOOKUP = Collections.unmodifiableMap(encodeLookup);
+        decodeLookup.forEach((k,v) -> ENCODE_LOOKUP[v] = '&' + k + ';');
+        // Markup characters are always escaped the same way
+        ENCODE_LOOKUP['\''] = "&apos;";
+        ENCODE_LOOKUP['"'] = "&quot;";
+        ENCODE_LOOKUP['<'] = "&lt;";
+        ENCODE_LOOKUP['>'] = "&gt;";
+        ENCODE_LOOKUP['&'] = "&amp;";
     }
 
     /**
      * Finds and replaces all valid escape sequences with their respective character
      * and returns the decoded string. Named, decimal and hexadecimal escape sequences
-     * are supported.
+     * are supported. If the string does not contain any escape sequences, the string
+     * itself is returned.
      *
      * @param str The string to decode
      * @return The decoded string
      */
     public static String decode(String str) {
-        StringBuilder out = new StringBuilder(str.length());
-        char c;
-        int end;
-        for(int i=0; i<str.length(); i++) {
-            c = str.charAt(i);
-            if(c == '&' && (end = str.indexOf(';', i+1)) <= i+10 && end != -1) {
-                c = str.charAt(i+1);
-                if(c == '#') {
-                    c = str.charAt(i+2);
-                    try {
-                        if(c == 'x')
-                            out.append((char) Integer.parseInt(str.substring(i+3, end), 16));
-                        else out.append((char) Integer.parseInt(str.substring(i+2, end)));
-                    } catch(NumberFormatException e) {
-                        out.append('&');
-                        continue;
-                    }
+        int first = str.indexOf('&');
+        if(first == -1) return str;
+        // Decoding never makes the string longer, so it can be done in place
+        char[] chars = str.toCharArray();
+        return new String(chars, 0, decode(chars, first, chars.length, chars, first));
+    }
+
+    /**
+     * Decodes the escape sequences in the given range of characters, without creating
+     * a string of the encoded characters first.
+     *
+     * @param chars The characters to decode
+     * @param from The index of the first character to decode
+     * @param to The end of the characters to decode, exclusive
+     * @return The decoded string
+     */
+    static String decode(char[] chars, int from, int to) {
+        int first = from;
+        while(first < to && chars[first] != '&') first++;
+        if(first == to) return new String(chars, from, to - from);
+        char[] out = new char[to - from];
+        System.arraycopy(chars, from, out, 0, first - from);
+        return new String(out, 0, decode(chars, first, to, out, first - from));
+    }
+
+    /**
+     * Decodes the escape sequences in the given range of characters and writes the
+     * result into the given output array. The output is never longer than the input,
+     * so the output array may be the input array if <code>off &lt;= from</code>.
+     *
+     * @param chars The characters to decode
+     * @param from The index of the first character to decode
+     * @param to The end of the characters to decode, exclusive
+     * @param out The array to write the decoded characters into
+     * @param off The index to start writing at
+     * @return The end of the written characters in the output, exclusive
+     */
+    private static int decode(char[] chars, int from, int to, char[] out, int off) {
+        int j = off;
+        for(int i=from; i<to; i++) {
+            char c = chars[i];
+            if(c != '&') {
+                out[j++] = c;
+                continue;
+            }
+            int end = i + 1, limit = Math.min(to, i + MAX_REFERENCE_LENGTH + 1);
+            while(end < limit && chars[end] != ';') end++;
+            if(end == limit) {
+                out[j++] = '&';
+                continue;
+            }
+            if(chars[i+1] == '#') {
+                int codePoint = chars[i+2] == 'x' ? parseCodePoint(chars, i+3, end, 16) : parseCodePoint(chars, i+2, end, 10);
+                if(codePoint == -1) {
+                    out[j++] = '&';
+                    continue;
                 }
-                else {
-                    Character d = DECODE_LOOKUP.get(str.substring(i+1, end));
-                    if(d == null) {
-                        out.append('&');
-                        continue;
-                    }
-                    out.append(d);
+                j += Character.toChars(codePoint, out, j);
+            }
+            else {
+                int index = lookupNamed(chars, i+1, end);
+                if(index == -1) {
+                    out[j++] = '&';
+                    continue;
                 }
-                i = end;
+                out[j++] = NAMED_TABLE_CHARS[index];
             }
-            else out.append(c);
+            i = end;
         }
-        return out.toString();
+        return j;
+    }
+
+    /**
+     * Parses the digits of a numeric escape sequence.
+     *
+     * @param chars The characters containing the digits
+     * @param from The index of the first digit
+     * @param to The end of the digits, exclusive
+     * @param radix The radix of the number, 10 or 16
+     * @return The code point, or <code>-1</code> if the range is empty, contains
+     *         anything else than digits or does not denote a valid code point
+     */
+    private static int parseCodePoint(char[] chars, int from, int to, int radix) {
+        if(from >= to) return -1;
+        int codePoint = 0;
+        for(int i=from; i<to; i++) {
+            int digit = Character.digit(chars[i], radix);
+            if(digit == -1) return -1;
+            codePoint = codePoint * radix + digit;
+            if(codePoint > Character.MAX_CODE_POINT) return -1;
+        }
+        return codePoint;
+    }
+
+    /**
+     * Looks up the named escape sequence with the given name.
+     *
+     * @param chars The characters containing the name
+     * @param from The index of the first character of the name
+     * @param to The end of the name, exclusive
+     * @return The index of the name in {@link #NAMED_TABLE_NAMES}, or <code>-1</code>
+     *         if there is no escape sequence with that name
+     */
+    private static int lookupNamed(char[] chars, int from, int to) {
+        for(int index = hash(chars, from, to); NAMED_TABLE_NAMES[index] != null; index = (index + 1) & (NAMED_TABLE_SIZE - 1)) {
+            char[] name = NAMED_TABLE_NAMES[index];
+            if(name.length != to - from) continue;
+            int k = 0;
+            while(k < name.length && name[k] == chars[from + k]) k++;
+            if(k == name.length) return index;
+        }
+        return -1;
+    }
+
+    /**
+     * Hashes the given name into an index in the table of named escape sequences.
+     *
+     * @param chars The characters containing the name
+     * @param from The index of the first character of the name
+     * @param to The end of the name, exclusive
+     * @return The index in the table
+     */
+    private static int hash(char[] chars, int from, int to) {
+        int hash = 0;
+        for(int i=from; i<to; i++)
+            hash = 31 * hash + chars[i];
+        return (hash ^ (hash >>> 10)) & (NAMED_TABLE_SIZE - 1);
     }
 
     /**
@@ -450,15 +583,25 @@ public final class XMLEncoder {
     }
 
     /**
-     * Encodes the given string to a valid xml string for the given charset.
+     * Encodes the given string to a valid xml string for the given charset. If
+     * nothing has to be escaped, the string itself is returned.
      *
      * @param str The string to encode
      * @param charset The charset that defines what characters are displayable
      * @return The encoded string
      */
     public static String encode(String str, Charset charset) {
-        StringBuilder out = new StringBuilder();
-        encode(str, out, charset);
+        Displayability displayability = displayability(charset);
+        int first = 0, length = str.length();
+        while(first < length && displayability.plain.get(str.charAt(first))) first++;
+        if(first == length) return str;
+
+        StringBuilder out = new StringBuilder(length + 16).append(str, 0, first);
+        try {
+            encode(str, first, length, out, displayability);
+        } catch(IOException e) {
+            throw new UncheckedIOException(e); // Not thrown by StringBuilder
+        }
         return out.toString();
     }
 
@@ -482,28 +625,189 @@ public final class XMLEncoder {
      * @param charset The charset that defines what characters are displayable
      */
     public static void encode(String str, StringBuilder out, Charset charset) {
-        encode(str, out, charset != null ? charset.newEncoder()::canEncode : DEFAULT_XML_DISPLAYABLE);
+        try {
+            encode(str, 0, str.length(), out, displayability(charset));
+        } catch(IOException e) {
+            throw new UncheckedIOException(e); // Not thrown by StringBuilder
+        }
     }
 
     /**
-     * Encodes the given string to a valid xml string for the given display
-     * predicate and writes the output into the given StringBuilder.
+     * Encodes the given string to a valid xml string for ASCII charset and
+     * writes the output into the given appendable, for example a writer.
      *
      * @param str The string to encode
-     * @param out The string builder to write into
-     * @param displayable The predicate that defines what characters are displayable
+     * @param out The appendable to write into
+     * @throws IOException If an I/O error occurs while writing
+     */
+    public static void encode(String str, Appendable out) throws IOException {
+        encode(str, out, (Charset) null);
+    }
+
+    /**
+     * Encodes the given string to a valid xml string for the given charset and
+     * writes the output into the given appendable, for example a writer.
+     *
+     * @param str The string to encode
+     * @param out The appendable to write into
+     * @param charset The charset that defines what characters are displayable
+     * @throws IOException If an I/O error occurs while writing
+     */
+    public static void encode(String str, Appendable out, Charset charset) throws IOException {
+        encode(str, 0, str.length(), out, displayability(charset));
+    }
+
+    /**
+     * Encodes the given string to a valid xml string for ASCII charset and
+     * writes the output into the given xml writer.
+     *
+     * @param str The string to encode
+     * @param out The xml writer to write into
+     */
+    static void encode(String str, XMLWriter out) {
+        try {
+            encode(str, 0, str.length(), out, ASCII_DISPLAYABILITY);
+        } catch(IOException e) {
+            throw new UncheckedIOException(e); // Not thrown by XMLWriter
+        }
+    }
+
+    /**
+     * Encodes the given string to a valid xml string for ASCII charset and
+     * writes the output into the given xml writer, indenting every line after
+     * the first one by the given level.
+     *
+     * @param str The string to encode
+     * @param out The xml writer to write into
+     * @param indent The indentation level of new lines
      */
-    private static void encode(String str, StringBuilder out, Predicate<Character> displayable) {
-        for(int i=0; i<str.length(); i++) {
+    static void encode(String str, XMLWriter out, int indent) {
+        try {
+            int start = 0;
+            for(int end = str.indexOf('\n'); end != -1; end = str.indexOf('\n', start)) {
+                encode(str, start, end, out, ASCII_DISPLAYABILITY);
+                out.newline(indent);
+                start = end + 1;
+            }
+            encode(str, start, str.length(), out, ASCII_DISPLAYABILITY);
+        } catch(IOException e) {
+            throw new UncheckedIOException(e); // Not thrown by XMLWriter
+        }
+    }
+
+    /**
+     * Encodes the given range of the given string and writes the output into the given
+     * appendable. Runs of characters that don't need to be escaped are written at once.
+     *
+     * @param str The string to encode
+     * @param from The index of the first character to encode
+     * @param to The end of the characters to encode, exclusive
+     * @param out The appendable to write into
+     * @param displayability The displayability of the target charset
+     * @throws IOException If an I/O error occurs while writing
+     */
+    private static void encode(String str, int from, int to, Appendable out, Displayability displayability) throws IOException {
+        BitSet plain = displayability.plain;
+        int run = from;
+        for(int i=from; i<to; i++) {
             char c = str.charAt(i);
-            if(c == '\'') out.append("&apos;");
-            else if(c == '"') out.append("&quot;");
-            else if(c == '<') out.append("&lt;");
-            else if(c == '>') out.append("&gt;");
-            else if(c == '&') out.append("&amp;");
-            else if(c < 9 || c == 11 || c == 12 || (c > 13 && c < 32) || !displayable.test(c))
-                out.append('&').append(ENCODE_LOOKUP.getOrDefault(c, "#" + (int)c)).append(';');
-            else out.append(c);
+            if(plain.get(c)) continue;
+
+            int codePoint = c;
+            if(Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(str.charAt(i+1))) {
+                if(displayability.supplementary) {
+                    i++;
+                    continue;
+                }
+                codePoint = Character.toCodePoint(c, str.charAt(i+1));
+            }
+            if(run != i) out.append(str, run, i);
+            if(codePoint < ENCODE_LOOKUP.length && ENCODE_LOOKUP[codePoint] != null)
+                out.append(ENCODE_LOOKUP[codePoint]);
+            else appendNumeric(codePoint, out);
+            i += Character.charCount(codePoint) - 1;
+            run = i + 1;
+        }
+        if(run != to) out.append(str, run, to);
+    }
+
+    /**
+     * Writes a decimal escape sequence for the given code point.
+     *
+     * @param codePoint The code point to escape
+     * @param out The appendable to write into
+     * @throws IOException If an I/O error occurs while writing
+     */
+    private static void appendNumeric(int codePoint, Appendable out) throws IOException {
+        out.append('&').append('#');
+        int divisor = 1;
+        while(divisor <= codePoint / 10) divisor *= 10;
+        for(; divisor > 0; divisor /= 10)
+            out.append((char) ('0' + codePoint / divisor % 10));
+        out.append(';');
+    }
+
+    /**
+     * Returns the displayability for the given charset.
+     *
+     * @param charset The charset to get the displayability for, or <code>null</code>
+     *                for ASCII
+     * @return The displayability for the charset
+     */
+    private static Displayability displayability(Charset charset) {
+        return charset != null ? DISPLAYABILITIES.computeIfAbsent(charset, Displayability::new) : ASCII_DISPLAYABILITY;
+    }
+
+    /**
+     * Returns whether the given character needs to be escaped regardless of the charset,
+     * because it is a markup character or a control character not allowed in xml.
+     *
+     * @param c The character to test
+     * @return Whether the character always has to be escaped
+     */
+    private static boolean alwaysEscaped(char c) {
+        return c == '\'' || c == '"' || c == '<' || c == '>' || c == '&' || c < 9 || c == 11 || c == 12 || (c > 13 && c < 32);
+    }
+
+
+    /**
+     * The characters that can be written into an xml string without escaping them when
+     * encoding for a specific charset. Computing it is rather expensive, so it is done
+     * only once per charset.
+     */
+    private static final class Displayability {
+
+        /**
+         * The chars that don't need to be escaped. Surrogates are never included.
+         */
+        final BitSet plain;
+        /**
+         * Whether supplementary characters can be written without escaping them.
+         */
+        final boolean supplementary;
+
+        /**
+         * Creates the displayability for ASCII charset.
+         */
+        Displayability() {
+            plain = new BitSet(128);
+            for(char c=0; c<128; c++)
+                if(!alwaysEscaped(c)) plain.set(c);
+            supplementary = false;
+        }
+
+        /**
+         * Creates the displayability for the given charset.
+         *
+         * @param charset The charset to compute the displayability of
+         */
+        Displayability(Charset charset) {
+            CharsetEncoder encoder = charset.newEncoder();
+            plain = new BitSet(Character.MAX_VALUE + 1);
+            for(int c=0; c<=Character.MAX_VALUE; c++)
+                if(!Character.isSurrogate((char) c) && !alwaysEscaped((char) c) && encoder.canEncode((char) c))
+                    plain.set(c);
+            supplementary = encoder.canEncode(new String(Character.toChars(Character.MIN_SUPPLEMENTARY_CODE_POINT)));
         }
     }
 }
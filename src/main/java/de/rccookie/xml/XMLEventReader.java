@@ -0,0 +1,182 @@
+package de.rccookie.xml;
+
+import java.util.Map;
+
+import de.rccookie.util.IterableIterator;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A pull-style reader over the events of an xml input, obtained using
+ * {@link XMLParser#events()}. The event reader uses the same parsing rules
+ * as the parser, including html void and unclosed tags and error recovery
+ * with {@link XML#TRY_FIX_ERRORS}, but never builds node trees. Its memory
+ * usage only depends on the nesting depth of the document.
+ * <p>The data of the current event is available through the accessor methods
+ * and is only valid until the next event is read.</p>
+ */
+public class XMLEventReader implements IterableIterator<XMLEventType>, AutoCloseable {
+
+    /**
+     * The parser that parses the events.
+     */
+    private final XMLParser parser;
+
+    /**
+     * Creates a new event reader.
+     *
+     * @param parser The parser to read the events from
+     */
+    XMLEventReader(XMLParser parser) {
+        this.parser = parser;
+    }
+
+    /**
+     * Closes this event reader and the underlying parser.
+     */
+    @Override
+    public void close() {
+        parser.close();
+    }
+
+    /**
+     * Returns whether there are more events to be read. This <b>does not</b>
+     * necessarily mean that the remaining input will be parsable.
+     *
+     * @return Whether more events are available
+     */
+    @Override
+    public boolean hasNext() {
+        return parser.hasNextEvent();
+    }
+
+    /**
+     * Reads the next event.
+     *
+     * @return The type of the event read
+     */
+    @Override
+    public XMLEventType next() {
+        return parser.nextEvent();
+    }
+
+    /**
+     * Returns the type of the current event.
+     *
+     * @return The current event type, or <code>null</code> if no event has been read yet
+     */
+    public XMLEventType getEventType() {
+        return parser.event;
+    }
+
+    /**
+     * Returns the tag of the current element, or the target of the current processing
+     * instruction. For attribute events, the tag of the element the attribute belongs
+     * to is returned.
+     *
+     * @return The tag of the current event
+     * @throws IllegalStateException If the current event is not an element, attribute
+     *                               or processing instruction event
+     */
+    @NotNull
+    public String getTag() {
+        check(XMLEventType.START_ELEMENT, XMLEventType.END_ELEMENT, XMLEventType.ATTRIBUTE, XMLEventType.PROCESSING_INSTRUCTION);
+        return parser.eventTag;
+    }
+
+    /**
+     * Returns the attributes of the current element or processing instruction. The
+     * returned map is a read-only view that is reused for all events, and is only valid
+     * until the next event is read.
+     *
+     * @return The attributes of the current event
+     * @throws IllegalStateException If the current event is not a start element,
+     *                               attribute or processing instruction event
+     */
+    @NotNull
+    public Map<String,String> getAttributes() {
+        check(XMLEventType.START_ELEMENT, XMLEventType.ATTRIBUTE, XMLEventType.PROCESSING_INSTRUCTION);
+        return parser.eventAttributesView;
+    }
+
+    /**
+     * Returns the value of the given attribute of the current element or processing
+     * instruction.
+     *
+     * @param name The name of the attribute
+     * @return The value of the attribute, or <code>null</code> if not present
+     * @throws IllegalStateException If the current event is not a start element,
+     *                               attribute or processing instruction event
+     */
+    public String getAttribute(String name) {
+        return getAttributes().get(name);
+    }
+
+    /**
+     * Returns the name of the current attribute.
+     *
+     * @return The attribute name
+     * @throws IllegalStateException If the current event is not an attribute event
+     */
+    @NotNull
+    public String getAttributeName() {
+        check(XMLEventType.ATTRIBUTE);
+        return parser.eventAttribute.getKey();
+    }
+
+    /**
+     * Returns the value of the current attribute.
+     *
+     * @return The attribute value
+     * @throws IllegalStateException If the current event is not an attribute event
+     */
+    @NotNull
+    public String getAttributeValue() {
+        check(XMLEventType.ATTRIBUTE);
+        return parser.eventAttribute.getValue();
+    }
+
+    /**
+     * Returns the text of the current text or comment event.
+     *
+     * @return The current text
+     * @throws IllegalStateException If the current event is not a text or comment event
+     */
+    @NotNull
+    public String getText() {
+        check(XMLEventType.TEXT, XMLEventType.COMMENT);
+        return parser.eventText();
+    }
+
+    /**
+     * Returns the doctype of the current doctype event.
+     *
+     * @return The doctype
+     * @throws IllegalStateException If the current event is not a doctype event
+     */
+    @NotNull
+    public Doctype getDoctype() {
+        check(XMLEventType.DOCTYPE);
+        return parser.eventDoctype;
+    }
+
+    /**
+     * Returns the number of currently open elements. Elements that are closed
+     * implicitly (like void tags) are not counted.
+     *
+     * @return The current nesting depth
+     */
+    public int getDepth() {
+        return parser.depth();
+    }
+
+    /**
+     * Asserts that the current event is one of the given types.
+     *
+     * @param types The allowed event types
+     */
+    private void check(XMLEventType... types) {
+        for(XMLEventType type : types)
+            if(parser.event == type) return;
+        throw new IllegalStateException("Not available for " + parser.event + " event");
+    }
+}
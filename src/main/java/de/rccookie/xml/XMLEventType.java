@@ -0,0 +1,40 @@
+package de.rccookie.xml;
+
+/**
+ * The types of events reported by an {@link XMLEventReader}.
+ */
+public enum XMLEventType {
+    /**
+     * The start of an element. The tag and all attributes of the element are
+     * available. Every start element event is eventually followed by a matching
+     * {@link #END_ELEMENT} event, also for void and self-closing elements.
+     */
+    START_ELEMENT,
+    /**
+     * One attribute of the element that has just been started. These events
+     * follow directly after the {@link #START_ELEMENT} event, one per attribute.
+     */
+    ATTRIBUTE,
+    /**
+     * A block of text, already decoded.
+     */
+    TEXT,
+    /**
+     * A comment. Only reported if the {@link XML#INCLUDE_COMMENTS} flag is set.
+     */
+    COMMENT,
+    /**
+     * The end of an element, which may also have been closed implicitly.
+     */
+    END_ELEMENT,
+    /**
+     * A processing instruction, or the xml declaration. Processing instructions
+     * other than the xml declaration are only reported if the {@link XML#INCLUDE_PROCESSORS}
+     * flag is set.
+     */
+    PROCESSING_INSTRUCTION,
+    /**
+     * The doctype declaration.
+     */
+    DOCTYPE
+}
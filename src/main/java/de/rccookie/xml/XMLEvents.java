@@ -0,0 +1,171 @@
+package de.rccookie.xml;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Internal JDK Flight Recorder events for parsing, serializing and querying xml.
+ * The events are created and committed around the respective operations, and their
+ * fields are only computed if the event is actually committed. As long as the flight
+ * recorder has not been initialized, the event classes are not used at all, so that
+ * the operations don't have any overhead.
+ */
+final class XMLEvents {
+
+    private XMLEvents() {
+        throw new UnsupportedOperationException();
+    }
+
+
+    /**
+     * Returns whether events may be recorded, which is the case once the flight
+     * recorder has been initialized. Events should not even be created before.
+     *
+     * @return Whether to create events
+     */
+    static boolean active() {
+        return FlightRecorder.isInitialized();
+    }
+
+
+    /**
+     * Parsing of a complete document using {@link XMLParser#parseAll()}.
+     */
+    @Name("de.rccookie.xml.Parse")
+    @Label("XML Parse")
+    @Description("Parsing of a complete xml or html document")
+    @Category("XML")
+    static final class Parse extends Event {
+
+        @Label("Characters")
+        @Description("Number of characters consumed from the input")
+        long chars;
+
+        @Label("Nodes")
+        @Description("Number of nodes created")
+        long nodes;
+
+        @Label("Options")
+        @Description("Parsing option flags")
+        long options;
+
+        @Label("Charset")
+        @Description("Charset the input was decoded with, if parsed from bytes")
+        String charset;
+    }
+
+    /**
+     * Serialization of a node into a string or writer.
+     */
+    @Name("de.rccookie.xml.Serialize")
+    @Label("XML Serialize")
+    @Description("Serialization of an xml tree to a string or writer")
+    @Category("XML")
+    static final class Serialize extends Event {
+
+        @Label("Operation")
+        String operation;
+
+        @Label("Tag")
+        @Description("Tag of the serialized node")
+        String tag;
+
+        @Label("Characters")
+        @Description("Number of characters written")
+        long chars;
+
+        @Label("Options")
+        @Description("Formatting option flags")
+        long options;
+    }
+
+    /**
+     * A search for elements in a tree using one of the <code>getElementBy</code>
+     * or <code>getElementsBy</code> methods of {@link Node}.
+     */
+    @Name("de.rccookie.xml.Query")
+    @Label("XML Query")
+    @Description("Search for elements in an xml tree. For queries returning a stream, the duration lasts until the stream was traversed completely")
+    @Category("XML")
+    static final class Query extends Event {
+
+        @Label("Query")
+        @Description("The kind of query, for example 'tag' or 'class'")
+        String query;
+
+        @Label("Attribute")
+        @Description("The attribute searched for, if any")
+        String attribute;
+
+        @Label("Value")
+        @Description("The tag, class names or attribute value searched for")
+        String value;
+
+        @Label("Matches")
+        @Description("Number of elements found")
+        long matches;
+    }
+
+    /**
+     * A spliterator over the results of a query, which commits the query event
+     * once all results have been traversed.
+     */
+    static final class QuerySpliterator implements Spliterator<Node> {
+
+        private final Spliterator<Node> matches;
+        private final Query event;
+        private boolean done = false;
+
+        QuerySpliterator(Spliterator<Node> matches, Query event) {
+            this.matches = matches;
+            this.event = event;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Node> action) {
+            if(matches.tryAdvance(action)) {
+                event.matches++;
+                return true;
+            }
+            commit();
+            return false;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super Node> action) {
+            matches.forEachRemaining(n -> {
+                event.matches++;
+                action.accept(n);
+            });
+            commit();
+        }
+
+        private void commit() {
+            if(done) return;
+            done = true;
+            event.commit();
+        }
+
+        @Override
+        public Spliterator<Node> trySplit() {
+            return null;
+        }
+
+        @Override
+        public long estimateSize() {
+            return matches.estimateSize();
+        }
+
+        @Override
+        public int characteristics() {
+            return matches.characteristics() & ~(SIZED | SUBSIZED);
+        }
+    }
+}
@@ -0,0 +1,421 @@
+package de.rccookie.xml;
+
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import de.rccookie.util.Arguments;
+
+/**
+ * A non-blocking parser that is fed with chunks of input as they become available,
+ * for example from a NIO channel. After each chunk, everything that can be parsed
+ * completely is passed to the {@link XMLHandler} or node consumer of the parser,
+ * and parsing resumes once the next chunk arrives. Chunks may end anywhere, including
+ * within tags, entities and comments. The same parsing rules as for {@link XMLParser}
+ * apply.
+ * <p>Feed parsers are obtained using {@link XML#getFeedParser(long, XMLHandler)} and
+ * {@link XML#getFeedParser(long, Consumer)}.</p>
+ */
+public class XMLFeedParser implements AutoCloseable {
+
+    /**
+     * Thrown by the input reader when all input fed so far has been read.
+     */
+    private static final RuntimeException NEED_MORE_INPUT = new RuntimeException("More input needed", null, false, false) { };
+    /**
+     * Length of a partially parsed event up to which it is re-parsed whenever more
+     * input is fed. Longer events are only re-parsed once the input fed since has
+     * reached their length, so that feeding small chunks does not re-parse long text
+     * or script content over and over again.
+     */
+    private static final int EAGER_RETRY_LENGTH = 4096;
+
+    /**
+     * The input fed to the parser.
+     */
+    private final FeedReader input = new FeedReader();
+    /**
+     * The parser parsing the input.
+     */
+    private final XMLParser parser;
+    /**
+     * The handler to pass events to, or <code>null</code> if nodes are built.
+     */
+    private final XMLHandler handler;
+    /**
+     * The consumer of completed nodes, or <code>null</code> if events are passed
+     * to the handler.
+     */
+    private final Consumer<? super Node> nodeConsumer;
+    /**
+     * Warnings of the event currently being parsed. They are only reported once the
+     * event has been parsed completely, to not report them multiple times.
+     */
+    private final List<String> eventWarnings = new ArrayList<>();
+    /**
+     * The warning message listener.
+     */
+    private Consumer<String> warningListener = w -> {};
+    /**
+     * The decoder for byte input, created when needed.
+     */
+    private CharsetDecoder decoder = null;
+    /**
+     * The charset to decode byte input with.
+     */
+    private Charset charset = StandardCharsets.UTF_8;
+    /**
+     * Bytes of an incomplete character at the end of the last byte chunk.
+     */
+    private ByteBuffer undecoded = ByteBuffer.allocate(0);
+    /**
+     * Buffer for decoded characters.
+     */
+    private CharBuffer decoded = CharBuffer.allocate(0);
+    /**
+     * Total number of characters that have to be fed before the partially parsed
+     * event gets re-parsed.
+     */
+    private long retryAt = 0;
+    /**
+     * Whether a doctype declaration has been parsed.
+     */
+    private boolean doctype = false;
+    /**
+     * Whether the end of the input has been signaled.
+     */
+    private boolean ended = false;
+    /**
+     * Whether all input has been parsed.
+     */
+    private boolean done = false;
+
+
+    /**
+     * Creates a new feed parser.
+     *
+     * @param options Parsing options
+     * @param handler The handler to pass events to, or <code>null</code>
+     * @param nodeConsumer The consumer to pass completed nodes to, or <code>null</code>
+     */
+    XMLFeedParser(long options, XMLHandler handler, Consumer<? super Node> nodeConsumer) {
+        this.parser = new XMLParser(input, options).setWarningListener(eventWarnings::add);
+        this.handler = handler;
+        this.nodeConsumer = nodeConsumer;
+        if(nodeConsumer != null)
+            parser.setRecordDepth(1);
+    }
+
+    /**
+     * Sets the consumer that gets invoked when an error gets fixed.
+     * Will only be used if the {@link XML#TRY_FIX_ERRORS} flag is set.
+     *
+     * @param warningListener The listener to set
+     * @return This parser
+     */
+    public XMLFeedParser setWarningListener(Consumer<String> warningListener) {
+        this.warningListener = Arguments.checkNull(warningListener);
+        return this;
+    }
+
+    /**
+     * Sets the charset used to decode byte input. By default, UTF-8 is used. This
+     * has to be set before any bytes are fed.
+     *
+     * @param charset The charset to use
+     * @return This parser
+     */
+    public XMLFeedParser setCharset(Charset charset) {
+        Arguments.checkNull(charset, "charset");
+        if(decoder != null) throw new IllegalStateException("Charset has to be set before feeding bytes");
+        this.charset = charset;
+        return this;
+    }
+
+    /**
+     * Only emits the elements at the given path, like <code>"/feed/record"</code>,
+     * instead of the top-level elements. Only applicable if the parser emits nodes.
+     * This has to be set before any input is fed.
+     *
+     * @param path The absolute path of the elements to emit
+     * @return This parser
+     * @see XMLParser#setRecordPath(String)
+     */
+    public XMLFeedParser setRecordPath(String path) {
+        checkRecordMode();
+        parser.setRecordPath(path);
+        return this;
+    }
+
+    /**
+     * Only emits the elements at the given depth, instead of the top-level elements.
+     * Only applicable if the parser emits nodes. This has to be set before any input
+     * is fed.
+     *
+     * @param depth The depth of the elements to emit, <code>1</code> being top-level
+     * @return This parser
+     * @see XMLParser#setRecordDepth(int)
+     */
+    public XMLFeedParser setRecordDepth(int depth) {
+        checkRecordMode();
+        parser.setRecordDepth(depth);
+        return this;
+    }
+
+    /**
+     * Asserts that the record mode can be changed.
+     */
+    private void checkRecordMode() {
+        if(nodeConsumer == null)
+            throw new IllegalStateException("Records can only be selected when emitting nodes");
+        if(input.fed) throw new IllegalStateException("Records have to be selected before feeding input");
+    }
+
+    /**
+     * Feeds the remaining bytes of the given buffer to the parser, and parses as
+     * much of the input as possible. The bytes are decoded using the charset of
+     * this parser, characters split across chunks are decoded once complete.
+     *
+     * @param bytes The bytes to feed
+     * @return This parser
+     * @throws UncheckedIOException If the bytes are malformed for the charset
+     */
+    public XMLFeedParser feed(ByteBuffer bytes) {
+        checkFeedable();
+        if(decoder == null)
+            decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT);
+
+        ByteBuffer in = bytes;
+        if(undecoded.hasRemaining()) {
+            in = ByteBuffer.allocate(undecoded.remaining() + bytes.remaining());
+            in.put(undecoded).put(bytes).flip();
+        }
+        decode(in, false);
+        if(in.hasRemaining()) {
+            undecoded = ByteBuffer.allocate(in.remaining());
+            undecoded.put(in).flip();
+        }
+        else undecoded = ByteBuffer.allocate(0);
+        parse();
+        return this;
+    }
+
+    /**
+     * Feeds the remaining characters of the given buffer to the parser, and parses
+     * as much of the input as possible.
+     *
+     * @param chars The characters to feed
+     * @return This parser
+     */
+    public XMLFeedParser feed(CharBuffer chars) {
+        checkFeedable();
+        input.append(chars);
+        parse();
+        return this;
+    }
+
+    /**
+     * Signals that all input has been fed, and parses the remaining input. Any
+     * incomplete content is now treated like the end of a file.
+     *
+     * @throws UncheckedIOException If the remaining bytes fed are malformed for the charset
+     */
+    public void endOfInput() {
+        checkFeedable();
+        if(decoder != null) {
+            decode(undecoded, true);
+            decoded.clear();
+            CoderResult result = decoder.flush(decoded);
+            if(result.isError()) throwCodingException(result);
+            decoded.flip();
+            input.append(decoded);
+            undecoded = ByteBuffer.allocate(0);
+        }
+        ended = true;
+        input.ended = true;
+        parse();
+    }
+
+    /**
+     * Returns whether the end of the input has been signaled and all input has
+     * been parsed.
+     *
+     * @return Whether the parser is done
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Closes this parser, discarding any input that has not been parsed yet.
+     */
+    @Override
+    public void close() {
+        ended = true;
+        parser.close();
+    }
+
+    /**
+     * Asserts that more input can be fed.
+     */
+    private void checkFeedable() {
+        if(ended) throw new IllegalStateException("End of input already reached");
+    }
+
+    /**
+     * Decodes the given bytes and appends the characters to the input.
+     *
+     * @param bytes The bytes to decode
+     * @param endOfInput Whether no more bytes will follow
+     */
+    private void decode(ByteBuffer bytes, boolean endOfInput) {
+        int capacity = (int) Math.ceil(bytes.remaining() * (double) decoder.maxCharsPerByte()) + 1;
+        if(decoded.capacity() < capacity)
+            decoded = CharBuffer.allocate(capacity);
+        decoded.clear();
+        CoderResult result = decoder.decode(bytes, decoded, endOfInput);
+        if(result.isError()) throwCodingException(result);
+        decoded.flip();
+        input.append(decoded);
+    }
+
+    /**
+     * Throws the exception described by the given erroneous coder result.
+     *
+     * @param result The coder result
+     */
+    private static void throwCodingException(CoderResult result) {
+        try {
+            result.throwException();
+        } catch(CharacterCodingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Parses as many complete events as possible from the input fed so far, and
+     * passes them on. An event that could only be parsed partially is re-parsed
+     * from its start once more input is available.
+     */
+    private void parse() {
+        if(!ended && input.total < retryAt) return;
+        while(true) {
+            XMLEventType event;
+            parser.markEvent();
+            try {
+                if(!parser.hasNextEvent()) break;
+                event = parser.nextEvent();
+            } catch(RuntimeException e) {
+                if(e != NEED_MORE_INPUT) throw e;
+                int length = parser.markedEventLength();
+                retryAt = length < EAGER_RETRY_LENGTH ? 0 : input.total + length;
+                parser.resetEvent();
+                eventWarnings.clear();
+                return;
+            }
+
+            for(String warning : eventWarnings)
+                warningListener.accept(warning);
+            eventWarnings.clear();
+
+            doctype |= event == XMLEventType.DOCTYPE;
+            if(handler != null)
+                parser.dispatchEvent(event, handler);
+            else {
+                Node node = parser.buildRecord(event);
+                if(node != null)
+                    nodeConsumer.accept(node);
+            }
+        }
+
+        // Only reached once all input has been fed and parsed
+        done = true;
+        parser.setWarningListener(warningListener);
+        parser.finishDocument(doctype);
+    }
+
+
+    /**
+     * Reader over the input fed to the parser. Instead of blocking, it throws
+     * {@link #NEED_MORE_INPUT} if no more input has been fed yet.
+     */
+    private static final class FeedReader extends Reader {
+
+        /**
+         * The characters fed and not yet read.
+         */
+        private char[] chars = new char[0];
+        /**
+         * Index of the next character to be read in {@link #chars}.
+         */
+        private int start = 0;
+        /**
+         * Number of valid characters in {@link #chars}.
+         */
+        private int end = 0;
+        /**
+         * Total number of characters fed.
+         */
+        long total = 0;
+        /**
+         * Whether any input has been fed.
+         */
+        boolean fed = false;
+        /**
+         * Whether all input has been fed.
+         */
+        boolean ended = false;
+
+        /**
+         * Appends the remaining characters of the given buffer.
+         *
+         * @param in The characters to append
+         */
+        void append(CharBuffer in) {
+            int count = in.remaining();
+            fed = true;
+            if(count == 0) return;
+            if(end + count > chars.length) {
+                char[] target = end - start + count > chars.length ? new char[Math.max(end - start + count, chars.length * 2)] : chars;
+                System.arraycopy(chars, start, target, 0, end - start);
+                chars = target;
+                end -= start;
+                start = 0;
+            }
+            in.get(chars, end, count);
+            end += count;
+            total += count;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if(len == 0) return 0;
+            if(start == end) {
+                if(ended) return -1;
+                throw NEED_MORE_INPUT;
+            }
+            int count = Math.min(len, end - start);
+            System.arraycopy(chars, start, cbuf, off, count);
+            start += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+            ended = true;
+            start = end = 0;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package de.rccookie.xml;
+
+import java.util.Map;
+
+/**
+ * A callback interface that receives the content of an xml input while it
+ * is being parsed, using {@link XMLParser#parse(XMLHandler)} or one of the
+ * <code>XML.parse(source, options, handler)</code> methods. No node trees are
+ * built while parsing this way, but the same parsing rules apply, including
+ * html void and unclosed tags and error recovery with {@link XML#TRY_FIX_ERRORS}.
+ * <p>All methods do nothing by default, so only the callbacks of interest
+ * have to be implemented.</p>
+ */
+public interface XMLHandler {
+
+    /**
+     * Called when an element starts. Elements that are closed immediately, like
+     * self-closing or void tags, also get a matching call to {@link #endElement(String)}.
+     *
+     * @param tag The tag of the element
+     * @param attributes The attributes of the element. The map is a read-only view that
+     *                   is reused for all elements, so it is only valid during this call
+     *                   and has to be copied if needed afterwards
+     */
+    default void startElement(String tag, Map<String,String> attributes) { }
+
+    /**
+     * Called for text content.
+     *
+     * @param text The text, with entities already decoded
+     */
+    default void characters(String text) { }
+
+    /**
+     * Called when an element ends.
+     *
+     * @param tag The tag of the element
+     */
+    default void endElement(String tag) { }
+
+    /**
+     * Called for a comment. Comments are only reported if the {@link XML#INCLUDE_COMMENTS}
+     * flag is set.
+     *
+     * @param text The content of the comment
+     */
+    default void comment(String text) { }
+
+    /**
+     * Called for a processing instruction, including the xml declaration (with the
+     * target <code>"xml"</code>). Processing instructions other than the xml declaration
+     * are only reported if the {@link XML#INCLUDE_PROCESSORS} flag is set.
+     *
+     * @param target The target of the processing instruction
+     * @param attributes The attributes of the processing instruction. The map is reused
+     *                   and only valid during this call
+     */
+    default void processingInstruction(String target, Map<String,String> attributes) { }
+
+    /**
+     * Called for the doctype declaration.
+     *
+     * @param doctype The doctype
+     */
+    default void doctype(Doctype doctype) { }
+}
@@ -1,11 +1,17 @@
 package de.rccookie.xml;
 
 import java.io.Reader;
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.Spliterator;
 import java.util.Spliterators;
+import java.util.function.BiPredicate;
 import java.util.function.Consumer;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
@@ -27,6 +33,15 @@ public class XMLParser implements IterableIterator<Node>, AutoCloseable {
      * Html void tags (tags that must not be closed).
      */
     static final Set<String> HTML_VOID_TAGS = Set.of("area", "base", "br", "col", "hr", "img", "input", "link", "meta", "param", "command", "keygen", "source", "frame", "embed", "applet", "basefont");
+    /**
+     * Html tags whose content is raw text without tags or character references.
+     */
+    static final Set<String> HTML_RAW_TEXT_TAGS = Set.of("script", "style");
+    /**
+     * Html tags whose content is text with character references, but without tags
+     * (escapable raw text elements).
+     */
+    static final Set<String> HTML_RCDATA_TAGS = Set.of("textarea", "title");
     /**
      * Html tags that don't have to be closed.
      */
@@ -49,6 +64,11 @@ public class XMLParser implements IterableIterator<Node>, AutoCloseable {
      * The xml reader over the input source.
      */
     private final XMLReader xml;
+    /**
+     * The charset the input source was decoded with, or <code>null</code> if it was
+     * not given as bytes.
+     */
+    private Charset charset;
     /**
      * Whether the parser has been closed.
      */
@@ -65,13 +85,142 @@ public class XMLParser implements IterableIterator<Node>, AutoCloseable {
     /**
      * Current tag hierarchy, as stack from root to current leaf.
      */
-    private final Deque<String> hierarchy = new ArrayDeque<>();
+    private final TagStack hierarchy = new TagStack();
 
     /**
      * The warning message listener.
      */
     private Consumer<String> warningListener = w -> {};
 
+    /**
+     * The filter that elements have to pass to be parsed, or <code>null</code>.
+     */
+    private BiPredicate<? super String, ? super Map<String,String>> elementFilter = null;
+    /**
+     * Whether the content of an element rejected by the filter is currently being
+     * skipped.
+     */
+    private boolean skipping = false;
+
+    /**
+     * The current event when reading events, or <code>null</code> if no event
+     * has been read yet.
+     */
+    XMLEventType event = null;
+    /**
+     * The tag of the current element or processing instruction event.
+     */
+    String eventTag = null;
+    /**
+     * The text of the current text or comment event, before applying
+     * {@link #eventTextFormat}.
+     */
+    private String eventText = null;
+    /**
+     * The {@link Text#format(String, int) format flags} still to be applied to
+     * {@link #eventText}.
+     */
+    private int eventTextFormat = 0;
+    /**
+     * The doctype of the current doctype event.
+     */
+    Doctype eventDoctype = null;
+    /**
+     * The processing instruction of the current processing instruction event.
+     */
+    Prolog eventProlog = null;
+    /**
+     * The attributes of the current element or processing instruction event.
+     * The same instance is reused for all events, unless it is taken over by a
+     * node using {@link #takeEventAttributes()}.
+     */
+    private AttributeMap eventAttributes = new AttributeMap();
+    /**
+     * Unmodifiable view of {@link #eventAttributes}.
+     */
+    Map<String,String> eventAttributesView = Collections.unmodifiableMap(eventAttributes);
+    /**
+     * The attribute of the current attribute event.
+     */
+    Map.Entry<String,String> eventAttribute = null;
+    /**
+     * Attributes of the current element that have not been reported as attribute
+     * events yet, or <code>null</code>.
+     */
+    private Iterator<Map.Entry<String,String>> pendingAttributes = null;
+    /**
+     * Raw text content (of a script, style or other raw text element) to be reported
+     * as text event next, or <code>null</code>.
+     */
+    private String pendingRawText = null;
+    /**
+     * The {@link Text#format(String, int) format flags} still to be applied to
+     * {@link #pendingRawText}.
+     */
+    private int pendingRawTextFormat = 0;
+    /**
+     * Whether the current element is already closed and the end element event should
+     * be reported next.
+     */
+    private boolean pendingEnd = false;
+
+    /**
+     * The depth of the elements returned by {@link #next()} in record mode, or
+     * <code>0</code> if top-level nodes are returned.
+     */
+    private int recordDepth = 0;
+    /**
+     * The tags (from the root) that the elements returned in record mode have to
+     * match, where <code>"*"</code> matches any tag, or <code>null</code> to match
+     * any element at the record depth.
+     */
+    private String[] recordPath = null;
+    /**
+     * The next record, if it has already been parsed by {@link #hasNext()}.
+     */
+    private Node nextRecord = null;
+    /**
+     * The innermost open element of the record currently being built, or
+     * <code>null</code>.
+     */
+    private Node recordElement = null;
+
+    /**
+     * The options the parser was created or reset with.
+     */
+    private long options;
+    /**
+     * The number of nodes built, for flight recorder events.
+     */
+    private long builtNodes = 0;
+    /**
+     * The metrics to record into, or <code>null</code> if metrics are not collected.
+     */
+    private ParseMetrics metrics = null;
+    /**
+     * The number of consumed characters already added to the metrics.
+     */
+    private long reportedChars = 0;
+    /**
+     * The time spent tokenizing and decoding by this parser while collecting metrics,
+     * to keep the timings disjoint.
+     */
+    private long tokenizeNanos = 0, decodeNanos = 0;
+    /**
+     * The maximum element depth already reported to the metrics.
+     */
+    private int reportedDepth = 0;
+    /**
+     * The depth of the element whose content is parsed with {@link #parseContent(String, int)},
+     * minus one, so that the metrics report the depth within the whole document.
+     */
+    private int depthOffset = 0;
+
+    /**
+     * State of the parser when {@link #markEvent()} was called.
+     */
+    private boolean markFirstNode, markDoctypeAllowed;
+
 
     /**
      * Creates a new xml parser.
@@ -80,7 +229,119 @@ public class XMLParser implements IterableIterator<Node>, AutoCloseable {
      * @param options Parsing options
      */
     XMLParser(Reader reader, long options) {
+        this(reader, options, null);
+    }
+
+    /**
+     * Creates a new xml parser for input that is decoded from bytes.
+     *
+     * @param reader The input source
+     * @param options Parsing options
+     * @param charset The charset the input source decodes its bytes with
+     */
+    XMLParser(Reader reader, long options, Charset charset) {
         xml = new XMLReader(reader, options);
+        this.options = options;
+        this.charset = charset;
+    }
+
+    /**
+     * Creates a new xml parser for input that is completely in memory. The characters
+     * are read directly, without a {@link Reader}.
+     *
+     * @param input The complete input
+     * @param options Parsing options
+     */
+    XMLParser(CharSequence input, long options) {
+        xml = new XMLReader(input, options);
+        this.options = options;
+    }
+
+    /**
+     * Resets this parser to parse the given input source, as if it was newly created
+     * with the given options. The warning listener, element filter, record mode and
+     * metrics are reset as well. Internal buffers and the symbol table are kept, so that parsing
+     * many small documents with the same parser allocates little more than the parsed
+     * nodes. The previous input source is not closed by this method.
+     *
+     * @param reader The new input source
+     * @param options Parsing options
+     * @return This parser
+     */
+    public synchronized XMLParser reset(Reader reader, long options) {
+        Arguments.checkNull(reader, "reader");
+        flushChars();
+        xml.init(reader, options);
+        this.options = options;
+        return resetState();
+    }
+
+    /**
+     * Resets this parser to parse the given characters, as if it was newly created
+     * with the given options. Like {@link #reset(Reader, long)}, but the characters
+     * are read directly, without a {@link Reader}. The input must not be modified
+     * while it is being parsed.
+     *
+     * @param input The new input
+     * @param options Parsing options
+     * @return This parser
+     */
+    public synchronized XMLParser reset(CharSequence input, long options) {
+        Arguments.checkNull(input, "input");
+        flushChars();
+        xml.init(input, options);
+        this.options = options;
+        return resetState();
+    }
+
+    /**
+     * Resets the parsing state of this parser after its reader has been reset.
+     *
+     * @return This parser
+     */
+    private XMLParser resetState() {
+        charset = null;
+        closed = false;
+        firstNode = doctypeAllowed = true;
+        hierarchy.clear();
+        warningListener = w -> {};
+        elementFilter = null;
+        skipping = false;
+        event = null;
+        eventTag = eventText = null;
+        eventTextFormat = 0;
+        eventDoctype = null;
+        eventProlog = null;
+        eventAttributes.clear();
+        eventAttribute = null;
+        pendingAttributes = null;
+        pendingRawText = null;
+        pendingRawTextFormat = 0;
+        pendingEnd = false;
+        recordDepth = 0;
+        recordPath = null;
+        nextRecord = null;
+        recordElement = null;
+        builtNodes = 0;
+        metrics = null;
+        reportedChars = tokenizeNanos = decodeNanos = 0;
+        reportedDepth = depthOffset = 0;
+        return this;
+    }
+
+    /**
+     * Sets the metrics object to record counters and timings of this parser into,
+     * starting at the current position. The same metrics object may be used by
+     * multiple parsers to aggregate their metrics.
+     *
+     * @param metrics The metrics to record into, or <code>null</code> to stop
+     *                collecting metrics
+     * @return This parser
+     */
+    public synchronized XMLParser setMetrics(ParseMetrics metrics) {
+        flushChars();
+        this.metrics = metrics;
+        return this;
     }
 
     /**
@@ -95,12 +356,103 @@ public class XMLParser implements IterableIterator<Node>, AutoCloseable {
         return this;
     }
 
+    /**
+     * Sets the symbol table used for tag names and attribute keys. By default, each
+     * parser uses its own symbol table. Sharing one between parsers that parse similar
+     * documents avoids allocating the same names again for each document. This should
+     * be set before parsing.
+     *
+     * @param symbols The symbol table to use
+     * @return This parser
+     */
+    public XMLParser setSymbolTable(SymbolTable symbols) {
+        xml.symbols = Arguments.checkNull(symbols, "symbols");
+        return this;
+    }
+
+    /**
+     * Sets a filter that decides for each element whether it gets parsed. The filter
+     * receives the tag and the attributes of the element. A rejected element is skipped
+     * together with all of its content while tokenizing, without building any nodes
+     * or reporting any events for it, and its descendants are not passed to the filter.
+     * Top-level elements are always kept.
+     *
+     * @param filter The filter elements have to pass, or <code>null</code> to keep all
+     *               elements
+     * @return This parser
+     */
+    public XMLParser setElementFilter(BiPredicate<? super String, ? super Map<String,String>> filter) {
+        elementFilter = filter;
+        return this;
+    }
+
+    /**
+     * Sets a filter that skips all elements with any of the given tags together with
+     * their content, for example <code>skipElements("script", "style", "svg", "nav")</code>.
+     * The tags are compared like closing tags, so ignoring case for html. This replaces
+     * any filter set previously, see {@link #setElementFilter(BiPredicate)}.
+     *
+     * @param tags The tags of the elements to skip
+     * @return This parser
+     */
+    public XMLParser skipElements(String... tags) {
+        String[] skipped = Arguments.deepCheckNull(tags, "tags").clone();
+        return setElementFilter((tag, attributes) -> {
+            for(String s : skipped)
+                if(closes(s, tag)) return false;
+            return true;
+        });
+    }
+
+    /**
+     * Switches this parser into record mode, in which {@link #next()} and {@link #stream()}
+     * don't return the top-level nodes, but every element at the given path, like
+     * <code>"/feed/record"</code>. A path segment <code>"*"</code> matches any tag. Each
+     * record is returned as a detached node as soon as it is closed, while ancestors and
+     * all other content is skipped without building any nodes. Thus, the memory usage is
+     * bounded by the largest record rather than the whole document.
+     * <p>This has to be set before the first node is parsed.</p>
+     *
+     * @param path The absolute path of the elements to return
+     * @return This parser
+     */
+    public XMLParser setRecordPath(String path) {
+        Arguments.checkNull(path, "path");
+        if(!path.startsWith("/") || path.length() == 1)
+            throw new IllegalArgumentException("Absolute path expected, got '"+path+"'");
+        String[] tags = path.substring(1).split("/", -1);
+        for(String tag : tags)
+            if(tag.isEmpty()) throw new IllegalArgumentException("Empty tag in path '"+path+"'");
+        setRecordDepth(tags.length);
+        recordPath = tags;
+        return this;
+    }
+
+    /**
+     * Switches this parser into record mode, in which {@link #next()} and {@link #stream()}
+     * don't return the top-level nodes, but every element at the given depth. A depth of
+     * <code>1</code> refers to the top-level elements, <code>2</code> to their child elements,
+     * and so on. Each record is returned as a detached node as soon as it is closed, while
+     * ancestors and all other content is skipped without building any nodes.
+     * <p>This has to be set before the first node is parsed.</p>
+     *
+     * @param depth The depth of the elements to return
+     * @return This parser
+     */
+    public XMLParser setRecordDepth(int depth) {
+        if(depth < 1) throw new IllegalArgumentException("Record depth must be at least 1, got "+depth);
+        recordDepth = depth;
+        recordPath = null;
+        return this;
+    }
+
     /**
      * Closes this parser and the underlying input source.
      */
     @Override
     public void close() {
         if(closed) return;
+        flushChars();
         closed = true;
         xml.close();
     }
@@ -113,29 +465,140 @@ public class XMLParser implements IterableIterator<Node>, AutoCloseable {
      * @return The parsed document
      */
     public Document parseAll() {
+        if(!XMLEvents.active()) return parseDocument();
+        XMLEvents.Parse event = new XMLEvents.Parse();
+        event.begin();
+        Document document = parseDocument();
+        event.end();
+        if(event.shouldCommit()) {
+            event.chars = xml.consumed();
+            event.nodes = builtNodes;
+            event.options = options;
+            event.charset = charset != null ? charset.name() : null;
+            event.commit();
+        }
+        return document;
+    }
+
+    /**
+     * Parses the complete input source into a document and closes the parser,
+     * without recording a flight recorder event.
+     *
+     * @return The parsed document
+     */
+    private Document parseDocument() {
         if(closed) throw new IllegalStateException("Parser has been closed");
         if(!firstNode) throw new IllegalStateException("Can only parse document as the first parse action");
+        if(recordDepth != 0) throw new IllegalStateException("Cannot parse document in record mode");
         Document document = new Document();
+        document.charset = charset;
         while(hasNext()) {
             Node next = next(); // use 'next' for synchronization
             if(next instanceof XMLDeclaration)
                 document.setXMLDeclaration((XMLDeclaration) next);
             else if(next instanceof Doctype)
                 document.setDoctype((Doctype) next);
-            else document.children.add(next);
+            else document.children.addNew(next);
+        }
+        finishDocument(document.getDoctype() != null);
+        return document;
+    }
+
+    /**
+     * Parses the complete input source, passing its content to the given handler
+     * instead of building a document, and closes the parser. This has to be the
+     * first parsing action on the parser.
+     *
+     * @param handler The handler to receive the parsed content
+     */
+    public void parse(XMLHandler handler) {
+        Arguments.checkNull(handler, "handler");
+        if(closed) throw new IllegalStateException("Parser has been closed");
+        if(!firstNode) throw new IllegalStateException("Can only parse document as the first parse action");
+
+        boolean doctype = false;
+        while(hasNextEvent()) {
+            XMLEventType event = nextEvent();
+            doctype |= event == XMLEventType.DOCTYPE;
+            dispatchEvent(event, handler);
+        }
+        finishDocument(doctype);
+    }
+
+    /**
+     * Parses the input as the content of an element with the given tag, which is
+     * treated as already open. Unlike when parsing the element normally, the end of
+     * the input does not close the element, so that the content of an element can be
+     * parsed in multiple parts.
+     *
+     * @param tag The tag of the enclosing element
+     * @param depth The depth of the enclosing element in the document, where root
+     *              elements have a depth of 1
+     * @return The parsed child nodes, or <code>null</code> if the input contains a
+     *         closing tag of the enclosing element or a stray closing tag
+     */
+    List<Node> parseContent(String tag, int depth) {
+        firstNode = doctypeAllowed = false;
+        depthOffset = depth - 1;
+        hierarchy.push(tag);
+        List<Node> nodes = new ArrayList<>();
+        while(!xml.skipToContent().isEmpty()) {
+            if(xml.peekClosingTag() != null) return null;
+            nodes.add(parseNextNode());
         }
+        return nodes;
+    }
+
+    /**
+     * Returns whether the input is parsed as plain xml, that is neither as html
+     * nor xhtml, whether specified explicitly or detected from the input.
+     *
+     * @return Whether plain xml syntax is used
+     */
+    boolean isXMLSyntax() {
+        return !xml.html && !xml.xhtml;
+    }
+
+    /**
+     * Passes the data of the current event to the given handler.
+     *
+     * @param event The current event
+     * @param handler The handler to receive the event
+     */
+    void dispatchEvent(XMLEventType event, XMLHandler handler) {
+        switch(event) {
+            case START_ELEMENT:
+                pendingAttributes = null; // Passed as map, no individual attribute events needed
+                handler.startElement(eventTag, eventAttributesView);
+                break;
+            case TEXT: handler.characters(eventText()); break;
+            case END_ELEMENT: handler.endElement(eventTag); break;
+            case COMMENT: handler.comment(eventText()); break;
+            case PROCESSING_INSTRUCTION: handler.processingInstruction(eventTag, eventAttributesView); break;
+            case DOCTYPE: handler.doctype(eventDoctype); break;
+        }
+    }
+
+    /**
+     * Closes the parser after the complete document has been parsed, and checks
+     * that it contains a doctype if required.
+     *
+     * @param doctype Whether the document contained a doctype declaration
+     */
+    void finishDocument(boolean doctype) {
+        if(metrics != null)
+            metrics.documents.increment();
         try {
             close(); // Don't throw away the parsed document...
         } catch(Exception e) {
             Console.warn("Error while closing parser:");
             Console.warn(e);
         }
-        if(xml.xhtml && document.getDoctype() == null) {
+        if(xml.xhtml && !doctype) {
             if(xml.tryFixErrors)
                 warn("DOCTYPE is required in XHTML documents");
             else throw new XMLParseException("DOCTYPE is required in XHTML documents");
         }
-        return document;
     }
 
     /**
@@ -146,11 +609,26 @@ public class XMLParser implements IterableIterator<Node>, AutoCloseable {
      */
     @Override
     public boolean hasNext() {
+        if(recordDepth == 0)
+            return hasNextNode();
+        synchronized(this) {
+            if(nextRecord == null && !closed)
+                nextRecord = parseNextRecord(); // Only way to know whether there is another record
+            return nextRecord != null;
+        }
+    }
+
+    /**
+     * Returns whether there is more content at the current position.
+     *
+     * @return Whether more data to parse is found
+     */
+    private boolean hasNextNode() {
         return !closed && !xml.skipToContent().isEmpty(); // Check if only remaining is an empty text
     }
 
     /**
-     * Parses the next node in the input source.
+     * Parses the next node in the input source, or the next record in record mode.
      *
      * @return The parsed node
      */
@@ -158,12 +636,18 @@ public class XMLParser implements IterableIterator<Node>, AutoCloseable {
     public synchronized Node next() {
         if(closed) throw new IllegalStateException("Parser has been closed");
         if(!hasNext()) throw new XMLParseException("No value present", xml);
+        if(recordDepth != 0) {
+            Node record = nextRecord;
+            nextRecord = null;
+            return record;
+        }
         hierarchy.clear();
         return parseNextNode();
     }
 
     /**
-     * Returns a stream over the nodes parsable from the input source.
+     * Returns a stream over the nodes parsable from the input source, or over
+     * the records in record mode.
      *
      * @return A stream over parsed nodes
      */
@@ -173,202 +657,706 @@ public class XMLParser implements IterableIterator<Node>, AutoCloseable {
         return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.IMMUTABLE|Spliterator.NONNULL), false);
     }
 
-    private Node parseNextNode() {
-        if(!xml.startsWith('<')) {
-            Text text = parseNextText("");
-            return text != null ? text : parseNextNode();
+    /**
+     * Returns a pull-style event reader over the remaining input of this parser.
+     * Unlike {@link #next()}, the event reader never builds node trees and runs in
+     * constant memory, regardless of the document size. While the event reader is
+     * in use, this parser should not be used for anything else.
+     *
+     * @return An event reader over the remaining input
+     */
+    public XMLEventReader events() {
+        if(closed) throw new IllegalStateException("Parser has been closed");
+        return new XMLEventReader(this);
+    }
+
+    /**
+     * Returns whether there are more events to be read.
+     *
+     * @return Whether more events are available
+     */
+    boolean hasNextEvent() {
+        return pendingAttributes != null || pendingRawText != null || pendingEnd || !hierarchy.isEmpty() || hasNextNode();
+    }
+
+    /**
+     * Reads the next event and stores its data in the event fields.
+     *
+     * @return The type of the event read
+     */
+    synchronized XMLEventType nextEvent() {
+        if(closed) throw new IllegalStateException("Parser has been closed");
+        if(pendingAttributes != null) {
+            if(pendingAttributes.hasNext()) {
+                eventAttribute = pendingAttributes.next();
+                return event = XMLEventType.ATTRIBUTE;
+            }
+            pendingAttributes = null;
+            eventAttribute = null;
+        }
+        if(pendingRawText != null) {
+            eventText = pendingRawText;
+            eventTextFormat = pendingRawTextFormat;
+            pendingRawText = null;
+            return event = XMLEventType.TEXT;
+        }
+        if(pendingEnd) {
+            pendingEnd = false;
+            return event = XMLEventType.END_ELEMENT;
+        }
+
+        XMLEventType next;
+        do {
+            if(hierarchy.isEmpty()) {
+                if(!hasNextNode()) throw new XMLParseException("No value present", xml);
+                next = tokenize(false);
+            }
+            else next = tokenize(true);
+        } while(next == null);
+        return event = next;
+    }
+
+    /**
+     * Marks the current state of the parser before reading the next event, so
+     * that the event can be re-read from its start using {@link #resetEvent()}
+     * if it could only be read partially.
+     */
+    void markEvent() {
+        xml.mark();
+        markFirstNode = firstNode;
+        markDoctypeAllowed = doctypeAllowed;
+    }
+
+    /**
+     * Restores the state of the parser to the last {@link #markEvent()}.
+     */
+    void resetEvent() {
+        xml.reset();
+        firstNode = markFirstNode;
+        doctypeAllowed = markDoctypeAllowed;
+    }
+
+    /**
+     * Returns the number of characters read since the last {@link #markEvent()}.
+     *
+     * @return The number of characters of the event currently being read
+     */
+    int markedEventLength() {
+        return xml.markedLength();
+    }
+
+    /**
+     * Reads events until the next record has been completed.
+     *
+     * @return The next record, or <code>null</code> if the end of the input was reached
+     */
+    private Node parseNextRecord() {
+        while(hasNextEvent()) {
+            XMLEventType event = nextEvent();
+            Node record;
+            if(metrics == null) record = buildRecord(event);
+            else {
+                long start = System.nanoTime();
+                record = buildRecord(event);
+                metrics.treeBuildNanos.add(System.nanoTime() - start);
+            }
+            if(record != null) return record;
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether the element of the current start element event is a record.
+     *
+     * @return Whether the current element should be returned as record
+     */
+    private boolean isRecord() {
+        // Closed elements are not pushed to the hierarchy
+        int depth = pendingEnd ? hierarchy.size() + 1 : hierarchy.size();
+        if(depth != recordDepth) return false;
+        if(recordPath == null) return true;
+
+        int i = recordPath.length - 1;
+        if(!matchesPath(recordPath[i], eventTag)) return false;
+        Iterator<String> tags = hierarchy.iterator(); // From leaf to root
+        if(!pendingEnd) tags.next(); // The element itself
+        while(tags.hasNext())
+            if(!matchesPath(recordPath[--i], tags.next())) return false;
+        return true;
+    }
+
+    /**
+     * Returns whether the given tag matches the given record path segment.
+     *
+     * @param segment The path segment
+     * @param tag The tag to test
+     * @return Whether the tag matches
+     */
+    private boolean matchesPath(String segment, String tag) {
+        return segment.equals("*") || closes(segment, tag);
+    }
+
+    /**
+     * Applies the current event to the record currently being built, or starts a
+     * new record if the event is the start of a record. Content outside of records
+     * is ignored.
+     *
+     * @param event The current event
+     * @return The record completed by the event, without parent, or <code>null</code>
+     */
+    Node buildRecord(XMLEventType event) {
+        if(event == XMLEventType.START_ELEMENT) {
+            pendingAttributes = null; // Not needed as individual events
+            if(recordElement == null && !isRecord()) return null;
+            Node element = new Node(eventTag, takeEventAttributes(), null);
+            if(recordElement != null)
+                recordElement.children.addNew(element);
+            recordElement = element;
+            return null;
         }
+        if(recordElement == null) return null;
 
-        if(xml.skip().skipIf('!')) { // No whitespaces allowed between any of <!DOCTYPE or <!--
-            // <!...
-            if(xml.startsWith("--")) return parseNextComment();
-            else if(xml.startsWithIgnoreCase("DOCTYPE")) return parseNextDoctype();
-            else throw new XMLParseException(doctypeAllowed ? "--' or 'DOCTYPE" : "--", xml.peekDescription(), xml);
+        switch(event) {
+            case END_ELEMENT: {
+                Node element = recordElement;
+                recordElement = element.getParent();
+                return recordElement == null ? element : null;
+            }
+            case TEXT: recordElement.children.addNew(new Text(eventText, eventTextFormat)); break;
+            case COMMENT: recordElement.children.addNew(new Comment(eventText)); break;
+            case DOCTYPE: recordElement.children.addNew(eventDoctype); break;
+            case PROCESSING_INSTRUCTION: recordElement.children.addNew(eventProlog); break;
+        }
+        return null;
+    }
+
+    /**
+     * Parses the next event within the current innermost open element, which is
+     * either the start of some child content or the end of the element.
+     *
+     * @return The event parsed, or <code>null</code> if the content did not produce
+     *         an event
+     */
+    private XMLEventType parseNextChildEvent() {
+        String tag = hierarchy.peek();
+        assert tag != null;
+
+        if(xml.skipToContent().isEmpty()) {
+            if(!xml.tryFixErrors)
+                throw new XMLParseException("Reached end of file during parsing, expected </"+tag+">", xml);
+            warn("Unclosed tag '"+tag+"'");
+            return endElementEvent();
+        }
+
+        String closingTag = xml.peekClosingTag();
+        if(closingTag == null || (xml.tryFixErrors && !closingTag.equalsIgnoreCase(tag) && !isOpen(closingTag)))
+            // <tag><child... or <tag>text, or probably too many closing tags
+            return parseNextEvent();
+
+        if(closes(closingTag, tag))
+            xml.skipClosingTag(tag);
+        else if(xml.tryFixErrors) warn("Unclosed tag '"+tag+"'");
+        else throw new XMLParseException("Incorrect closing tag, expected </"+tag+">, got </"+closingTag+">", xml);
+        return endElementEvent();
+    }
+
+    /**
+     * Parses the next event starting at the current position, which is the start
+     * of a node.
+     *
+     * @return The event parsed, or <code>null</code> if the content did not produce
+     *         an event
+     */
+    private XMLEventType parseNextEvent() {
+        if(!xml.startsWith('<'))
+            return parseNextTextEvent("");
+
+        if(xml.skip().skipIf('!')) {
+            if(xml.startsWith("--")) {
+                eventText = parseNextComment();
+                eventTextFormat = 0;
+                if(metrics != null && !skipping)
+                    metrics.comments.increment();
+                return XMLEventType.COMMENT;
+            }
+            if(xml.startsWithIgnoreCase("DOCTYPE")) {
+                eventDoctype = parseNextDoctype();
+                return XMLEventType.DOCTYPE;
+            }
+            throw new XMLParseException(doctypeAllowed ? "--' or 'DOCTYPE" : "--", xml.peekDescription(), xml);
         }
         if(xml.startsWith('?')) {
-            Prolog prolog = parseNextProlog(); // Also no whitespaces between <?xml
-            return prolog != null ? prolog : parseNextText("<?");
+            Prolog prolog = parseNextProlog();
+            if(prolog == null)
+                return parseNextTextEvent("<?");
+            eventProlog = prolog;
+            eventTag = prolog.tag;
+            eventAttributes.clear();
+            eventAttributes.putAll(prolog.attributes);
+            return XMLEventType.PROCESSING_INSTRUCTION;
         }
         if(xml.tryFixErrors && xml.skipIf('/')) {
             // </... even though not a closing tag expected
             String tag = parseNextKey("tag", xml.tryFixErrors);
             if(tag == null)
-                return parseNextText("</");
-            Node node = new Node(tag);
-            parseNextAttributes(node);
-            warn("Closing tag '"+node.tag+"' never opened");
+                return parseNextTextEvent("</");
+            eventAttributes.clear();
+            parseNextAttributes(eventAttributes);
+            warn("Closing tag '"+tag+"' never opened");
             xml.skipExpected('>');
-            return node;
+            return isRejected(tag) ? null : startElementEvent(tag, true);
         }
 
-        // <tag
         String tag = parseNextKey("tag", xml.tryFixErrors);
         if(tag == null)
-            return parseNextText("<");
-
-        Node node = new Node(tag);
+            return parseNextTextEvent("<");
         if((xml.html || xml.xhtml) && !HTML_TAGS.contains(tag))
-            warn("Unknown html tag '" + tag + "'"); // Not strictly forbidden, even in xhtml
+            warn("Unknown html tag '" + tag + "'");
 
-        // <tag ...>
-        parseNextAttributes(node);
+        eventAttributes.clear();
+        parseNextAttributes(eventAttributes);
+        boolean rejected = isRejected(tag);
         if(xml.skipIf('/')) {
-            // <tag/>
-            xml.skipExpected('>'); // No space between />
-            return node;
-        }
-
-        // Syntax can be detected from the root node
-        if(xml.detectSyntax && hierarchy.isEmpty()) {
-            if(!tag.equalsIgnoreCase("html"))
-                // Not <html> -> neither html nor xhtml
-                xml.xmlDetected();
-            else if(node.attributes.containsKey("xmlns")) {
-                // <html xmlns="http://www.w3.org/1999/xhtml"> -> xhtml
-                if(XHTML_NS_PATTERN.matcher(node.attributes.get("xmlns")).matches())
-                    xml.xhtmlDetected();
-                // Other namespace -> neither html nor xhtml
-                else xml.xmlDetected();
-            }
-            // <html> or <HTML> or similar -> assume html
-            else xml.htmlDetected();
+            xml.skipExpected('>');
+            return rejected ? null : startElementEvent(tag, true);
         }
 
-        // <tag>
+        if(xml.detectSyntax && hierarchy.isEmpty())
+            detectSyntax(tag, eventAttributes);
+
         xml.skipExpected('>');
         if(xml.html || xml.xhtml) {
             if((xml.html || xml.tryFixErrors) && HTML_VOID_TAGS.contains(tag)) {
-                // <tag> unclosed or immediately closed
-                String closing = xml.peekClosingTag();
-                if(closing != null && closing.equalsIgnoreCase(tag))
-                    xml.skipClosingTag(tag);
-                return node;
+                skipVoidClosingTag(tag);
+                return rejected ? null : startElementEvent(tag, true);
             }
-            if(tag.equals("script")) {
-                // <script>...</script>
-                Text code = parseScriptContent();
-                if(code != null)
-                    node.children.add(code);
-                return node;
-            }
-            if(tag.equals("style")) {
-                // <style>...</style>
-                Text css = parseCSSContent();
-                if(css != null)
-                    node.children.add(css);
-                return node;
+            boolean rcdata = xml.html && HTML_RCDATA_TAGS.contains(tag);
+            if(rcdata || HTML_RAW_TEXT_TAGS.contains(tag)) {
+                if(rejected || skipping) {
+                    skipRawContent(tag);
+                    return null;
+                }
+                parseRawText(tag, rcdata);
+                return startElementEvent(tag, true);
             }
             if(tag.equals("pre"))
                 xml.pushPreserveWhitespaces();
         }
 
-        // <tag>...
         hierarchy.push(tag);
+        if(rejected) {
+            skipContent();
+            return null;
+        }
+        return startElementEvent(tag, false);
+    }
 
-        String closingTag = null;
-        while(!xml.skipToContent().isEmpty()) {
-            closingTag = xml.peekClosingTag();
-            if(closingTag == null)
-                // <tag><child... or <tag>text
-                node.children.add(parseNextNode());
-            else {
-                if(xml.tryFixErrors && !closingTag.equalsIgnoreCase(tag)) {
-                    // <tag></closingTag>
-                    if(hierarchy.stream().anyMatch(closingTag::equalsIgnoreCase))// && HTML_POSSIBLY_UNCLOSED_TAGS.contains(tag))
-                        break; // There are probably closing tags missing
-                    else node.children.add(parseNextNode()); // There are probably too many closing tags
-                }
-                else break;
+    /**
+     * Returns whether the element with the given tag, whose attributes have been
+     * parsed into {@link #eventAttributes}, is rejected by the element filter.
+     *
+     * @param tag The tag of the element
+     * @return Whether the element should be skipped
+     */
+    private boolean isRejected(String tag) {
+        return elementFilter != null && !skipping && !hierarchy.isEmpty() && !elementFilter.test(tag, eventAttributesView);
+    }
+
+    /**
+     * Skips the content of the innermost open element, which has been rejected by
+     * the element filter, up to and including its end. Only the tokenizer runs over
+     * the content, no events are reported and no text is read.
+     */
+    private void skipContent() {
+        int depth = hierarchy.size();
+        skipping = true;
+        try {
+            while(hierarchy.size() >= depth) {
+                parseNextChildEvent();
+                pendingAttributes = null;
+                pendingRawText = null;
+                pendingEnd = false;
             }
+        } catch(RuntimeException e) {
+            // Restore the hierarchy so that the element can be re-read from its start
+            while(hierarchy.size() >= depth)
+                endElementEvent();
+            throw e;
+        } finally {
+            skipping = false;
         }
-        hierarchy.pop();
+    }
 
-        assert closingTag != null;
-        // <tag><children/></closingTag>
-        if(((xml.html || xml.tryFixErrors) && closingTag.equalsIgnoreCase(tag)) || (!(xml.html || xml.tryFixErrors) && closingTag.equals(tag)))
-            // <tag><children/></tag>
-            xml.skipClosingTag(tag);
-        else if(xml.tryFixErrors) warn("Unclosed tag '"+tag+"'");
-        else throw new XMLParseException("Incorrect closing tag, expected </"+tag+">, got </"+closingTag+">", xml);
+    /**
+     * Skips the raw text content of a script or style element up to and including
+     * its closing tag, without reading it.
+     *
+     * @param tag The tag of the element
+     */
+    private void skipRawContent(String tag) {
+        xml.skip(indexOfRawTextEnd(tag));
+        xml.skipClosingTag(tag);
+        doctypeAllowed = false;
+    }
+
+    /**
+     * Parses the raw text content of a script, style or other raw text element up to
+     * and including its closing tag, and sets it up as {@link #pendingRawText}. The
+     * content is found with a single scan for the closing tag and read in one piece.
+     *
+     * @param tag The tag of the element
+     * @param rcdata Whether the content may contain character references
+     */
+    private void parseRawText(String tag, boolean rcdata) {
+        String text = xml.read(indexOfRawTextEnd(tag));
+        xml.skipClosingTag(tag);
+        doctypeAllowed = false;
+        if(xml.trimWhitespaces()) text = text.strip();
+        pendingRawText = text.isEmpty() ? null : text;
+        pendingRawTextFormat = !rcdata ? 0 :
+                (text.indexOf('&') != -1 ? Text.DECODE : 0) | (xml.trimWhitespaces() ? Text.NORMALIZE_WHITESPACES : 0);
+        if(metrics != null && pendingRawText != null) {
+            metrics.texts.increment();
+            if((pendingRawTextFormat & Text.DECODE) != 0)
+                metrics.entityDecodes.increment();
+        }
+    }
+
+    /**
+     * Returns the index of the closing tag of the raw text element with the given tag.
+     *
+     * @param tag The tag of the element
+     * @return The length of the content of the element
+     */
+    private int indexOfRawTextEnd(String tag) {
+        int end = xml.indexOfClosingTag(tag, xml.html || xml.tryFixErrors);
+        if(end == -1)
+            throw new XMLParseException("Reached end of file during parsing, expected </"+tag+">", xml);
+        return end;
+    }
+
+    /**
+     * Returns the number of currently open elements.
+     *
+     * @return The current nesting depth
+     */
+    int depth() {
+        return hierarchy.size();
+    }
 
+    /**
+     * Sets up the start element event for the given element, whose attributes
+     * have already been parsed into {@link #eventAttributes}.
+     *
+     * @param tag The tag of the element
+     * @param closed Whether the element has no (more) content and is already closed
+     * @return {@link XMLEventType#START_ELEMENT}
+     */
+    private XMLEventType startElementEvent(String tag, boolean closed) {
+        if(metrics != null && !skipping) {
+            metrics.elements.increment();
+            metrics.attributes.add(eventAttributes.size());
+            // Closed elements are not pushed to the hierarchy
+            int depth = depthOffset + (closed ? hierarchy.size() + 1 : hierarchy.size());
+            if(depth > reportedDepth) {
+                reportedDepth = depth;
+                metrics.maxDepth.accumulate(depth);
+            }
+        }
+        eventTag = tag;
+        pendingEnd = closed;
+        pendingAttributes = eventAttributes.isEmpty() ? null : eventAttributes.entrySet().iterator();
+        return XMLEventType.START_ELEMENT;
+    }
+
+    /**
+     * Closes the innermost open element and sets up the end element event for it.
+     *
+     * @return {@link XMLEventType#END_ELEMENT}
+     */
+    private XMLEventType endElementEvent() {
+        String tag = hierarchy.pop();
         if((xml.html || xml.xhtml) && tag.equals("pre"))
             xml.popPreserveWhitespaces();
-
         doctypeAllowed = false;
-        return node;
+        eventTag = tag;
+        return XMLEventType.END_ELEMENT;
     }
 
-    // TODO: Parse strings and comments properly for js and css
+    /**
+     * Returns the text of the current text or comment event, formatting it first
+     * if needed.
+     *
+     * @return The text of the current event
+     */
+    String eventText() {
+        if(eventTextFormat != 0) {
+            if(metrics == null || (eventTextFormat & Text.DECODE) == 0)
+                eventText = Text.format(eventText, eventTextFormat);
+            else {
+                long start = System.nanoTime();
+                eventText = Text.format(eventText, eventTextFormat);
+                recordDecodeTime(start);
+            }
+            eventTextFormat = 0;
+        }
+        return eventText;
+    }
 
-    private Text parseScriptContent() {
-        StringBuilder str = new StringBuilder();
-        do {
-            while(!xml.startsWith("</"))
-                str.append(xml.read());
-            String closingTag = xml.peekClosingTag();
-            if(((xml.html || xml.tryFixErrors) && closingTag.equalsIgnoreCase("script")) ||
-               (!(xml.html || xml.tryFixErrors) && closingTag.equals("script"))) break;
-            str.append(xml.read()).append(xml.read());
-        } while(true);
-        xml.skipClosingTag("script");
-        doctypeAllowed = false;
-        String code = xml.trimWhitespaces() ? str.toString().strip() : str.toString();
-        return code.isEmpty() ? null : new Text(code);
+    /**
+     * Takes the attributes of the current element event for use by a node, so that
+     * they don't have to be copied. A new map is used for subsequent events.
+     *
+     * @return The attributes of the current event, or <code>null</code> if there are none
+     */
+    private AttributeMap takeEventAttributes() {
+        if(eventAttributes.isEmpty()) return null;
+        AttributeMap attributes = eventAttributes;
+        eventAttributes = new AttributeMap();
+        eventAttributesView = Collections.unmodifiableMap(eventAttributes);
+        return attributes;
     }
 
-    private Text parseCSSContent() {
-        StringBuilder str = new StringBuilder();
-        do {
-            while(!xml.startsWith("</"))
-                str.append(xml.read());
-            String closingTag = xml.peekClosingTag();
-            if(((xml.html || xml.tryFixErrors) && closingTag.equalsIgnoreCase("style")) ||
-               (!(xml.html || xml.tryFixErrors) && closingTag.equals("style"))) break;
-            str.append(xml.read()).append(xml.read());
-        } while(true);
-        xml.skipClosingTag("style");
-        doctypeAllowed = false;
-        String css = xml.trimWhitespaces() ? str.toString().strip() : str.toString();
-        return css.isEmpty() ? null : new Text(css);
+    /**
+     * Parses the next node including all of its content, and records the time spent
+     * building the tree if metrics are collected.
+     *
+     * @return The parsed node, without parent
+     */
+    private Node parseNextNode() {
+        if(metrics == null) return buildNextNode();
+        long start = System.nanoTime(), tokenizing = tokenizeNanos, decoding = decodeNanos;
+        try {
+            return buildNextNode();
+        } finally {
+            metrics.treeBuildNanos.add(System.nanoTime() - start - (tokenizeNanos - tokenizing) - (decodeNanos - decoding));
+        }
     }
 
-    private Text parseNextText(String prefix) {
-        int nextTag = xml.indexOf('<');
-        StringBuilder str;
-        if(nextTag != -1) {
-            str = new StringBuilder(nextTag + prefix.length())
-                    .append(xml.read(nextTag))
-                    .append(prefix);
+    /**
+     * Parses the next node including all of its content. The tree is built iteratively
+     * from the parsed events, keeping the innermost open element as current node, so
+     * that the nesting depth is only limited by the available heap.
+     *
+     * @return The parsed node, without parent
+     */
+    private Node buildNextNode() {
+        Node current = null; // The innermost open element, linked to the outer ones by its parent
+        while(true) {
+            XMLEventType event = tokenize(current != null);
+            Node node;
+            if(event == null) {
+                // Text that did not produce a node
+                if(current == null && xml.skipToContent().isEmpty())
+                    throw new XMLParseException("No value present", xml);
+                continue;
+            }
+            if(event != XMLEventType.END_ELEMENT)
+                builtNodes++;
+            switch(event) {
+                case START_ELEMENT: {
+                    pendingAttributes = null; // Not needed as individual events
+                    node = new Node(eventTag, takeEventAttributes(), null);
+                    if(pendingRawText != null) {
+                        builtNodes++;
+                        node.children.addNew(new Text(pendingRawText, pendingRawTextFormat));
+                        pendingRawText = null;
+                    }
+                    if(!pendingEnd) {
+                        // Open element, the following events are its content
+                        if(current != null)
+                            current.children.addNew(node);
+                        current = node;
+                        continue;
+                    }
+                    pendingEnd = false;
+                    break;
+                }
+                case END_ELEMENT: {
+                    node = current;
+                    current = current.parent;
+                    if(current == null) return node;
+                    continue;
+                }
+                case TEXT: node = new Text(eventText, eventTextFormat); break;
+                case COMMENT: node = new Comment(eventText); break;
+                case DOCTYPE: node = eventDoctype; break;
+                case PROCESSING_INSTRUCTION: node = eventProlog; break;
+                default: throw new AssertionError();
+            }
+            if(current == null) return node;
+            current.children.addNew(node);
         }
-        else {
-            str = new StringBuilder(prefix);
-            while(!xml.isEmpty())
-                str.append(xml.read());
+    }
+
+    /**
+     * Parses the next event, either at the top level or within the innermost open
+     * element, and records the time spent tokenizing if metrics are collected.
+     *
+     * @param child Whether to parse the next event within the innermost open element
+     * @return The event parsed, or <code>null</code> if the content did not produce
+     *         an event
+     */
+    private XMLEventType tokenize(boolean child) {
+        if(metrics == null) return child ? parseNextChildEvent() : parseNextEvent();
+        long start = System.nanoTime(), decoding = decodeNanos;
+        try {
+            return child ? parseNextChildEvent() : parseNextEvent();
+        } finally {
+            long time = System.nanoTime() - start - (decodeNanos - decoding);
+            tokenizeNanos += time;
+            metrics.tokenizeNanos.add(time);
         }
-        while(xml.trimWhitespaces() && str.length() != 0 && Character.isWhitespace(str.charAt(str.length()-1)))
-            str.deleteCharAt(str.length()-1);
+    }
 
-        String text = formatText(str.toString());
+    /**
+     * Reads the specified number of characters of an attribute value, decodes their
+     * character references if there are any, and records the decoding if metrics are
+     * collected.
+     *
+     * @param count The number of characters to read
+     * @param references Whether the characters contain any character references
+     * @return The read and decoded string
+     */
+    private String readValue(int count, boolean references) {
+        if(!references) return xml.read(count);
+        if(metrics == null) return xml.readDecoded(count);
+        metrics.entityDecodes.increment();
+        long start = System.nanoTime();
+        String decoded = xml.readDecoded(count);
+        recordDecodeTime(start);
+        return decoded;
+    }
 
-        if(text.isEmpty()) return null;
-        if(doctypeAllowed)
-            doctypeAllowed = text.equals("\r") || text.equals("\n") || text.equals("\r\n");
-        return new Text(text);
+    /**
+     * Records the time spent decoding since the given start time.
+     *
+     * @param start The {@link System#nanoTime()} when decoding started
+     */
+    private void recordDecodeTime(long start) {
+        long time = System.nanoTime() - start;
+        decodeNanos += time;
+        metrics.decodeNanos.add(time);
+    }
+
+    /**
+     * Adds the characters consumed since the last call to the metrics, if metrics
+     * are collected.
+     */
+    private void flushChars() {
+        long consumed = xml.consumed();
+        if(metrics != null)
+            metrics.chars.add(consumed - reportedChars);
+        reportedChars = consumed;
+    }
+
+    /**
+     * Detects the syntax of the document from its root element.
+     *
+     * @param tag The tag of the root element
+     * @param attributes The attributes of the root element
+     */
+    private void detectSyntax(String tag, Map<String,String> attributes) {
+        if(!tag.equalsIgnoreCase("html"))
+            // Not <html> -> neither html nor xhtml
+            xml.xmlDetected();
+        else if(attributes.containsKey("xmlns")) {
+            // <html xmlns="http://www.w3.org/1999/xhtml"> -> xhtml
+            if(XHTML_NS_PATTERN.matcher(attributes.get("xmlns")).matches())
+                xml.xhtmlDetected();
+            // Other namespace -> neither html nor xhtml
+            else xml.xmlDetected();
+        }
+        // <html> or <HTML> or similar -> assume html
+        else xml.htmlDetected();
     }
 
-    private String formatText(String str) {
-//        System.out.println("Length: " + str.length());
-        if(xml.trimWhitespaces()  && ("\n".equals(str) || "\r".equals(str) || "\r\n".equals(str))) return "";
-        return XMLEncoder.decode(xml.trimWhitespaces() ? str.replaceAll("\\s+", " ") : str);
+    /**
+     * Skips the closing tag of the given void tag, if it immediately follows.
+     *
+     * @param tag The void tag
+     */
+    private void skipVoidClosingTag(String tag) {
+        String closing = xml.peekClosingTag();
+        if(closing != null && closing.equalsIgnoreCase(tag))
+            xml.skipClosingTag(tag);
+    }
+
+    /**
+     * Returns whether the given closing tag closes an element with the given tag.
+     *
+     * @param closingTag The name of the closing tag
+     * @param tag The tag of the element
+     * @return Whether the closing tag matches the element
+     */
+    private boolean closes(String closingTag, String tag) {
+        if(xml.html || xml.tryFixErrors)
+            return closingTag.equalsIgnoreCase(tag);
+        return closingTag.equals(tag);
+    }
+
+    /**
+     * Returns whether an element with the given tag is currently open, ignoring case.
+     *
+     * @param tag The tag to check
+     * @return Whether such an element is open
+     */
+    private boolean isOpen(String tag) {
+        return hierarchy.containsIgnoreCase(tag);
     }
 
-    private Comment parseNextComment() {
+    /**
+     * Parses the text up to the next tag and sets up the text event for it, if the
+     * text is not empty. Entity decoding and whitespace normalization of the text
+     * are deferred until the text is needed, see {@link #eventText()}. Within the
+     * content of a rejected element, the text is skipped without reading it.
+     *
+     * @param prefix Text that was already consumed and belongs to the text
+     * @return {@link XMLEventType#TEXT}, or <code>null</code> if there is no text
+     */
+    private XMLEventType parseNextTextEvent(String prefix) {
+        if(skipping) {
+            int nextTag = xml.indexOf('<');
+            if(nextTag == -1) xml.readRemaining();
+            else xml.skip(nextTag);
+            return null;
+        }
+
+        boolean references = prefix.indexOf('&') != -1;
+        int nextTag = xml.indexOfClass(CharClass.MARKUP, 0);
+        for(; nextTag != -1 && xml.peek(nextTag) == '&'; nextTag = xml.indexOfClass(CharClass.MARKUP, nextTag + 1))
+            references = true;
+
+        String str = nextTag != -1 ? xml.read(nextTag) : xml.readRemaining();
+        if(!prefix.isEmpty())
+            str = prefix + str;
+        int length = str.length();
+        if(xml.trimWhitespaces())
+            while(length != 0 && CharClass.isWhitespace(str.charAt(length - 1))) length--;
+
+        // Trimmed text cannot consist of newlines only, and formatting never empties text
+        if(length == 0) return null;
+
+        eventText = str.substring(0, length);
+        eventTextFormat = (references ? Text.DECODE : 0) | (xml.trimWhitespaces() ? Text.NORMALIZE_WHITESPACES : 0);
+        if(metrics != null) {
+            metrics.texts.increment();
+            if(references) metrics.entityDecodes.increment();
+        }
+        if(doctypeAllowed) {
+            String text = eventText();
+            doctypeAllowed = text.equals("\r") || text.equals("\n") || text.equals("\r\n");
+        }
+        return XMLEventType.TEXT;
+    }
+
+    private String parseNextComment() {
         xml.skip(2); // --
         int end = xml.indexOf("-->");
         if(end == -1) throw new XMLParseException("Reached end of file during comment", xml);
         if(!xml.allowDoubleDashInComments && xml.indexOf("--") != end)
             throw new XMLParseException("'--' not allowed in XML comments", xml);
-        Comment comment = new Comment(xml.read(end));
+        String comment = xml.read(end);
         xml.skip(3);
         return comment;
     }
@@ -441,54 +1429,35 @@ public class XMLParser implements IterableIterator<Node>, AutoCloseable {
             doctypeAllowed = false;
         }
         firstNode = false;
-        parseNextAttributes(prolog);
+        parseNextAttributes(prolog.attributes);
         xml.skipExpected('?').skipExpected('>');
         return prolog;
     }
 
     @Contract("_,false->!null")
     private String parseNextKey(String type, boolean allowMissing) {
-        StringBuilder key = new StringBuilder();
-        int i = 0;
-        for(char c = xml.peek(); c!='>' && c!='=' && c!='?' && c!='/' && !Character.isWhitespace(c); c = xml.peek(++i)) {
-//        for(char c = xml.peek(); c!='>' && c!='=' && c!='?' && c!='/' && !Character.isWhitespace(c); c = xml.skip().peek())
-            if((i == 0 && !isStartNameChar(c)) || (i != 0 && !isNameChar(c))) {
-                if(allowMissing) {
-                    warn("Unescaped '<'");
-                    return null;
-                }
-                xml.skip(i);
-                throw new XMLParseException("Illegal character in "+type+": '"+c+"'", xml);
+        int i = xml.nameLength();
+        char c = xml.peek(i);
+        if(c!='>' && c!='=' && c!='?' && c!='/' && !CharClass.isWhitespace(c)) {
+            if(allowMissing) {
+                warn("Unescaped '<'");
+                return null;
             }
-            key.append(c);
+            xml.skip(i);
+            throw new XMLParseException("Illegal character in "+type+": '"+c+"'", xml);
         }
-        xml.skip(i);
-        if(key.toString().isEmpty()) {
+        if(i == 0) {
             if(allowMissing) {
                 warn("Unescaped '<'");
                 return null;
             }
             throw new XMLParseException("[" + type + "]", xml.peekDescription(), xml);
         }
-        if(xml.html || (xml.xhtml && xml.tryFixErrors))
-            return key.toString().toLowerCase();
-        else if(xml.xhtml) {
-            String found = key.toString(), lower = found.toLowerCase();
-            if(!found.equals(lower))
-                throw new XMLParseException("XHTML tags and attribute keys must be in lowercase", xml);
-            return found;
-        }
-        return key.toString();
-    }
-
-    private static boolean isStartNameChar(char c) {
-        //noinspection UnnecessaryUnicodeEscape
-        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == ':' || c == '_' || c >= '\u00c0';
-    }
-
-    private static boolean isNameChar(char c) {
-        //noinspection UnnecessaryUnicodeEscape
-        return isStartNameChar(c) || c == '-' || c == '.' || (c >= '0' && c <= '9') || c == '\u00b7';
+        boolean toLowerCase = xml.html || (xml.xhtml && xml.tryFixErrors);
+        String key = xml.readSymbol(i, toLowerCase);
+        if(xml.xhtml && !toLowerCase && !key.equals(key.toLowerCase(Locale.ROOT)))
+            throw new XMLParseException("XHTML tags and attribute keys must be in lowercase", xml);
+        return key;
     }
 
     private String parseNextString() {
@@ -498,21 +1467,35 @@ public class XMLParser implements IterableIterator<Node>, AutoCloseable {
             else throw new XMLParseException("\"' or ''", start, xml);
         }
         xml.skip();
-        int end = xml.indexOf(start);
+        boolean references = false;
+        int end = xml.indexOfClass(CharClass.DELIMITER | CharClass.MARKUP, 0);
+        for(; end != -1; end = xml.indexOfClass(CharClass.DELIMITER | CharClass.MARKUP, end + 1)) {
+            char c = xml.peek(end);
+            if(c == start) break;
+            references |= c == '&';
+        }
         if(end == -1) throw new XMLParseException("Unclosed string literal", xml);
-        String str = xml.read(end);
+        String str = readValue(end, references);
         xml.skip();
-        return XMLEncoder.decode(str);
+        return str;
     }
 
     private String parseNextLooseString() {
-        StringBuilder key = new StringBuilder();
-        for(char c = xml.peek(); c!='>' && !Character.isWhitespace(c); c = xml.skip().peek())
-            key.append(c);
-        return XMLEncoder.decode(key.toString());
+        boolean references = false;
+        int end = xml.indexOfClass(CharClass.WHITESPACE | CharClass.DELIMITER | CharClass.MARKUP, 0);
+        for(; end != -1; end = xml.indexOfClass(CharClass.WHITESPACE | CharClass.DELIMITER | CharClass.MARKUP, end + 1)) {
+            char c = xml.peek(end);
+            if(c == '>' || CharClass.isWhitespace(c)) break;
+            references |= c == '&';
+        }
+        if(end == -1) {
+            xml.readRemaining();
+            throw new XMLParseException("Reached end of file during parsing", xml);
+        }
+        return readValue(end, references);
     }
 
-    private void parseNextAttributes(Node node) {
+    private void parseNextAttributes(Map<String,String> attributes) {
         while(true) {
             char c = xml.peek();
             if(c != '?' && c != '>' && c != '/') c = xml.skipWhitespace().skipWhitespaces(true).peek();
@@ -523,16 +1506,18 @@ public class XMLParser implements IterableIterator<Node>, AutoCloseable {
             if((xml.tryFixErrors || xml.allowEmptyAttr) && c != '=') {
                 if(!xml.allowEmptyAttr)
                     warn("Attribute without value");
-                node.attributes.put(key, "");
+                attributes.put(key, "");
             }
             else {
                 xml.skipWhitespaces(true).skipExpected('=').skipWhitespaces(true);
-                node.attributes.put(key, parseNextString());
+                attributes.put(key, parseNextString());
             }
         }
     }
 
     private void warn(String msg) {
+        if(metrics != null)
+            metrics.warnings.increment();
         warningListener.accept(msg + " (at " + xml.getPosition() + ')');
     }
 }
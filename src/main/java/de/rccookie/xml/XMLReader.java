@@ -1,29 +1,86 @@
 package de.rccookie.xml;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.UncheckedIOException;
+import java.nio.CharBuffer;
 
 /**
- * Internal class to read from a {@link Reader} more conveniently.
+ * Internal class to read from a {@link Reader} more conveniently. The reader
+ * keeps its own window of the input in a <code>char[]</code>, so that lookahead
+ * and searching are plain array operations. The window is refilled from the
+ * underlying reader as needed, and only characters that have already been
+ * consumed are ever discarded from it. Small input that is already completely
+ * in memory is used as window as a whole, without an underlying reader.
  */
 @SuppressWarnings({"UnusedReturnValue", "BooleanMethodIsAlwaysInverted", "SameParameterValue", "resource"})
 class XMLReader implements AutoCloseable {
 
     /**
-     * The underlying reader.
+     * Initial size of the character window.
      */
-    private final Reader reader;
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+    /**
+     * Windows larger than this are not kept when the reader is reused.
+     */
+    private static final int MAX_REUSED_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * The underlying reader, or <code>null</code> if the complete input is in the
+     * window.
+     */
+    private Reader reader;
+    /**
+     * The window of input characters. Characters before {@link #pos} have
+     * been consumed, characters from {@link #limit} on have not been read
+     * from the underlying reader yet.
+     */
+    private char[] buf = new char[INITIAL_BUFFER_SIZE];
+    /**
+     * The window array owned by this reader. {@link #buf} refers to it, unless the
+     * input is read directly from the caller's array.
+     */
+    private char[] ownBuf = buf;
+    /**
+     * Index of the next character to be consumed in {@link #buf}.
+     */
+    private int pos = 0;
+    /**
+     * Number of valid characters in {@link #buf}.
+     */
+    private int limit = 0;
+    /**
+     * Whether the underlying reader has reached its end.
+     */
+    private boolean eof = false;
+    /**
+     * Index in {@link #buf} of the mark set by {@link #mark()}, or <code>-1</code>.
+     * Characters from the mark on are never discarded from the window.
+     */
+    private int mark = -1;
+    /**
+     * The number of input characters before index <code>0</code> of {@link #buf}.
+     * Negative if the input starts at a later index of the window.
+     */
+    private long discarded;
+    /**
+     * State of this reader when {@link #mark()} was called, restored by {@link #reset()}.
+     */
+    private int markLine, markCharIndex, markPreserveWhitespaces;
+    private boolean markAllowEmptyAttr, markTryFixErrors, markAllowDoubleDashInComments, markHtml, markXhtml, markDetectSyntax;
+    /**
+     * The symbol table for tag names and attribute keys.
+     */
+    SymbolTable symbols = new SymbolTable();
     /**
      * Current position in the string.
      */
     int line = 1;
     int charIndex = 1;
 
-    final boolean includeComments;
+    boolean includeComments;
     private int preserveWhitespaces;
-    final boolean includeProcessors;
+    boolean includeProcessors;
     boolean allowEmptyAttr;
     boolean tryFixErrors;
     boolean allowDoubleDashInComments;
@@ -38,7 +95,80 @@ class XMLReader implements AutoCloseable {
      * @param reader The reader to use
      */
     XMLReader(Reader reader, long options) {
-        this.reader = reader.markSupported() ? reader : new BufferedReader(reader);
+        init(reader, options);
+    }
+
+    /**
+     * Creates a new xml reader over the given characters.
+     *
+     * @param input The complete input
+     */
+    XMLReader(CharSequence input, long options) {
+        init(input, options);
+    }
+
+    /**
+     * Resets this xml reader to read from the given reader, as if it was newly
+     * created. The window and the symbol table are kept.
+     *
+     * @param reader The reader to use
+     * @param options Parsing options
+     */
+    void init(Reader reader, long options) {
+        this.reader = reader;
+        if(ownBuf.length > MAX_REUSED_BUFFER_SIZE)
+            ownBuf = new char[INITIAL_BUFFER_SIZE];
+        buf = ownBuf;
+        pos = limit = 0;
+        discarded = 0;
+        eof = false;
+        initOptions(options);
+    }
+
+    /**
+     * Resets this xml reader to read the given characters, as if it was newly
+     * created. A {@link CharBuffer} backed by an array is used as window directly,
+     * other input is copied into the window once if it is small enough to keep the
+     * window for reuse. Larger input is read in windows, like from a reader. The
+     * symbol table is kept.
+     *
+     * @param input The complete input
+     * @param options Parsing options
+     */
+    void init(CharSequence input, long options) {
+        int length = input.length();
+        if(input instanceof CharBuffer && ((CharBuffer) input).hasArray()) {
+            CharBuffer chars = (CharBuffer) input;
+            buf = chars.array();
+            pos = chars.arrayOffset() + chars.position();
+        }
+        else if(length > MAX_REUSED_BUFFER_SIZE) {
+            // A copy of the whole input would double its memory
+            init(new CharSequenceReader(input), options);
+            return;
+        }
+        else {
+            if(ownBuf.length < length || ownBuf.length > MAX_REUSED_BUFFER_SIZE)
+                ownBuf = new char[Math.max(length, INITIAL_BUFFER_SIZE)];
+            getChars(input, 0, length, ownBuf, 0);
+            buf = ownBuf;
+            pos = 0;
+        }
+        reader = null;
+        limit = pos + length;
+        discarded = -pos;
+        eof = true;
+        initOptions(options);
+    }
+
+    /**
+     * Resets the position and the options of this reader.
+     *
+     * @param options Parsing options
+     */
+    private void initOptions(long options) {
+        mark = -1;
+        line = charIndex = 1;
         includeComments = (options & XML.INCLUDE_COMMENTS) != 0;
         preserveWhitespaces = (options & XML.PRESERVE_WHITESPACES) != 0 ? 1 : 0;
         includeProcessors = (options & XML.INCLUDE_PROCESSORS) != 0;
@@ -92,12 +222,114 @@ class XMLReader implements AutoCloseable {
     @Override
     public void close() {
         try {
-            reader.close();
+            if(reader != null) reader.close();
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
     }
 
+    /**
+     * Marks the current position and state of this reader, so that it can be
+     * restored using {@link #reset()}. Characters from the mark on are kept in
+     * the window until the next mark is set.
+     */
+    void mark() {
+        mark = pos;
+        markLine = line;
+        markCharIndex = charIndex;
+        markPreserveWhitespaces = preserveWhitespaces;
+        markAllowEmptyAttr = allowEmptyAttr;
+        markTryFixErrors = tryFixErrors;
+        markAllowDoubleDashInComments = allowDoubleDashInComments;
+        markHtml = html;
+        markXhtml = xhtml;
+        markDetectSyntax = detectSyntax;
+    }
+
+    /**
+     * Restores the position and state of this reader to the last mark.
+     */
+    void reset() {
+        if(mark < 0) throw new IllegalStateException("No mark set");
+        pos = mark;
+        line = markLine;
+        charIndex = markCharIndex;
+        preserveWhitespaces = markPreserveWhitespaces;
+        allowEmptyAttr = markAllowEmptyAttr;
+        tryFixErrors = markTryFixErrors;
+        allowDoubleDashInComments = markAllowDoubleDashInComments;
+        html = markHtml;
+        xhtml = markXhtml;
+        detectSyntax = markDetectSyntax;
+    }
+
+    /**
+     * Returns the number of characters buffered from the last mark on.
+     *
+     * @return The number of characters buffered since the mark
+     */
+    int markedLength() {
+        return mark < 0 ? 0 : limit - mark;
+    }
+
+    /**
+     * Makes sure that at least the given number of characters are buffered
+     * from the current position on, if possible.
+     *
+     * @param count The number of characters needed
+     * @return Whether that many characters are available, <code>false</code>
+     *         if the end of the input is reached before
+     */
+    private boolean ensure(int count) {
+        return limit - pos >= count || fill(count);
+    }
+
+    /**
+     * Reads more characters from the underlying reader into the window, until
+     * at least the given number of characters are buffered from the current
+     * position on, or the end of the input is reached. Consumed characters are
+     * compacted away (unless marked) and the window grows if needed.
+     *
+     * @param count The number of characters needed
+     * @return Whether that many characters are available
+     */
+    private boolean fill(int count) {
+        if(eof) return false;
+        if(pos + count > buf.length) {
+            int keep = mark < 0 ? pos : mark;
+            int needed = pos - keep + count;
+            char[] target = needed > buf.length ? new char[Math.max(needed, buf.length * 2)] : buf;
+            System.arraycopy(buf, keep, target, 0, limit - keep);
+            buf = ownBuf = target;
+            discarded += keep;
+            limit -= keep;
+            pos -= keep;
+            if(mark >= 0) mark = 0;
+        }
+        try {
+            while(limit - pos < count) {
+                int read = reader.read(buf, limit, buf.length - limit);
+                if(read == -1) {
+                    eof = true;
+                    return false;
+                }
+                limit += read;
+            }
+            return true;
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the number of characters consumed from the input so far.
+     *
+     * @return The number of consumed characters
+     */
+    long consumed() {
+        return discarded + pos;
+    }
+
     /**
      * Returns the first index of the given char, or {@code -1} if this reader
      * does not contain the specified character.
@@ -106,26 +338,59 @@ class XMLReader implements AutoCloseable {
      * @return First index of the character or {@code -1}
      */
     int indexOf(char c) {
-        try {
-            int i = 0;
-            for(int buf=1024;; buf*=2) {
-                reader.mark(buf);
-                reader.skip(i);
-
-                int d = 0;
-                for(; i<buf; i++) {
-                    d = reader.read();
-                    if(d == c || d == -1)
-                        break;
-                }
-                reader.reset();
+        return indexOf(c, 0);
+    }
 
-                if(i == buf) continue;
-                if(d == c) return i;
-                else return -1;
-            }
-        } catch(IOException e) {
-            throw new UncheckedIOException(e);
+    /**
+     * Returns the first index of the given char at or after the given offset,
+     * or {@code -1} if this reader does not contain the specified character
+     * there.
+     *
+     * @param c The character to search for
+     * @param from The offset to start searching at
+     * @return First index of the character or {@code -1}
+     */
+    private int indexOf(char c, int from) {
+        int i = from;
+        while(true) {
+            for(int stop = limit - pos; i < stop; i++)
+                if(buf[pos + i] == c) return i;
+            if(!fill(i + 1)) return -1;
+        }
+    }
+
+    /**
+     * Returns the first index at or after the given offset of a character in any
+     * of the given {@link CharClass character classes}, or {@code -1} if there is
+     * none.
+     *
+     * @param classes The character classes to search for, combined using <code>|</code>
+     * @param from The offset to start searching at
+     * @return First index of such a character or {@code -1}
+     */
+    int indexOfClass(int classes, int from) {
+        int i = from;
+        while(true) {
+            for(int stop = limit - pos; i < stop; i++)
+                if(CharClass.is(buf[pos + i], classes)) return i;
+            if(!fill(i + 1)) return -1;
+        }
+    }
+
+    /**
+     * Returns the length of the tag name or attribute key at the current position,
+     * which is the number of characters before the first character that is not
+     * allowed at its position in a name.
+     *
+     * @return The length of the name, <code>0</code> if there is none
+     */
+    int nameLength() {
+        if(!ensure(1) || !CharClass.isNameStart(buf[pos])) return 0;
+        int i = 1;
+        while(true) {
+            for(int stop = limit - pos; i < stop; i++)
+                if(!CharClass.isName(buf[pos + i])) return i;
+            if(!fill(i + 1)) return i;
         }
     }
 
@@ -139,78 +404,70 @@ class XMLReader implements AutoCloseable {
     int indexOf(String string) {
         if(string.isEmpty()) return 0;
 
-        char[] str = string.toCharArray();
-
-        // Precalculate shared prefix at offset (str and str[offset...])
-        // All elements at index offset-1, because offset=0 is trivial and not used, and offset=length => 0 is final element
-        int[] p = new int[str.length];
-        for(int i=0; i<str.length; i++) {
-            for(; p[i] < str.length - i - 1; p[i]++)
-                if(str[p[i]] != str[i + 1 + p[i]])
-                    break;
+        char first = string.charAt(0);
+        int length = string.length();
+        for(int i=0;; i++) {
+            i = indexOf(first, i);
+            if(i == -1 || !ensure(i + length)) return -1;
+            if(matches(i, string)) return i;
         }
+    }
 
-        try {
-
-            int i = 0, c = 0, o, r;
-            for(int buf=256;; buf*=2) {
-                reader.mark(buf + str.length);
-                reader.skip(i);
-
-                outer: for(o=1, r=0; i<buf; i++, o++, r--) {
-
-                    if(p[o-1] < r - 1)
-                        continue;
-                    // Equivalent, not precalculated:
-//                for(int j=0; j<r-1; j++)
-//                    if(str[j] != str[j+o])
-//                        continue outer;
-
-                    if(r != 0 && str[r-1] != c)
-                        continue;
-
-                    while(r < str.length) {
-                        c = reader.read();
-                        if(c == str[r++]) continue;
-                        if(c == -1) {
-                            reader.reset();
-                            return -1;
-                        }
-                        o = 0;
-                        continue outer;
-                    }
-
-                    reader.reset();
-                    return i;
-                }
-                reader.reset();
-            }
-
-        } catch(IOException e) {
-            throw new UncheckedIOException(e);
+    /**
+     * Returns the index of the first closing tag with the given name, which ends
+     * raw text content like scripts. Any other markup is ignored. The tag name may
+     * be surrounded by whitespaces, and has to be followed by <code>'&gt;'</code>.
+     *
+     * @param tag The name of the closing tag to search for
+     * @param ignoreCase Whether to compare the tag name ignoring its case
+     * @return The index of the closing tag, or {@code -1} if there is none
+     */
+    int indexOfClosingTag(String tag, boolean ignoreCase) {
+        for(int i = indexOf('<', 0); i != -1; i = indexOf('<', i + 1)) {
+            if(peekOrEnd(i + 1) != '/') continue;
+            int j = i + 2;
+            while(CharClass.isWhitespace(peekOrEnd(j))) j++;
+            if(!ensure(j + tag.length()) || !matches(j, tag, ignoreCase)) continue;
+            j += tag.length();
+            while(CharClass.isWhitespace(peekOrEnd(j))) j++;
+            if(peekOrEnd(j) == '>') return i;
         }
+        return -1;
     }
 
-    private int simpleIndexOf(char[] str) throws IOException {
-        iLoop: for(int i=0;;i++) {
-            reader.mark(i + str.length);
-            reader.skip(i);
-            int d = reader.read();
-            if(d == str[0]) {
-                for(int j=1; j<str.length; j++) {
-                    if(str[j] != reader.read()) {
-                        reader.reset();
-                        continue iLoop;
-                    }
-                }
-                reader.reset();
-                return i;
-            }
-            reader.reset();
-            if(d == -1) return -1;
-        }
+    /**
+     * Determines whether the buffered characters at the given offset are
+     * equal to the given string. The characters must already be buffered.
+     *
+     * @param offset The offset from the current position
+     * @param string The string to compare with
+     * @return Whether the characters match
+     */
+    private boolean matches(int offset, String string) {
+        for(int i=0, j=pos+offset; i<string.length(); i++, j++)
+            if(buf[j] != string.charAt(i)) return false;
+        return true;
     }
 
+    /**
+     * Determines whether the buffered characters at the given offset are
+     * equal to the given string, optionally ignoring the case of ascii
+     * letters. The characters must already be buffered.
+     *
+     * @param offset The offset from the current position
+     * @param string The string to compare with
+     * @param ignoreCase Whether to ignore the case of ascii letters
+     * @return Whether the characters match
+     */
+    private boolean matches(int offset, String string, boolean ignoreCase) {
+        if(!ignoreCase) return matches(offset, string);
+        for(int i=0, j=pos+offset; i<string.length(); i++, j++) {
+            char a = buf[j], b = string.charAt(i);
+            if(a != b && ((a | 0x20) != (b | 0x20) || (a | 0x20) < 'a' || (a | 0x20) > 'z'))
+                return false;
+        }
+        return true;
+    }
 
 
     @Override
@@ -235,14 +492,7 @@ class XMLReader implements AutoCloseable {
      * @return If no more characters are available
      */
     boolean isEmpty() {
-        try {
-            reader.mark(1);
-            boolean empty = reader.read() == -1;
-            reader.reset();
-            return empty;
-        } catch(IOException e) {
-            throw new UncheckedIOException(e);
-        }
+        return !ensure(1);
     }
 
     /**
@@ -256,45 +506,13 @@ class XMLReader implements AutoCloseable {
     XMLReader skipWhitespaces(boolean force) {
         if(!force && preserveWhitespaces())
             return this;
-        try {
-//            if(!force && preserveWhitespaces()) {
-//                reader.mark(3);
-//                int c = reader.read();
-//                if(c == '\n') {
-//                    c = reader.read();
-//                    reader.reset();
-//                    if(!Character.isWhitespace(c))
-//                        reader.skip(1);
-//                    return this;
-//                }
-//                if(c == '\r') {
-//                    c = reader.read();
-//                    if(c == '\n') {
-//                        c = reader.read();
-//                        reader.reset();
-//                        if(!Character.isWhitespace(c))
-//                            reader.skip(2);
-//                        return this;
-//                    }
-//                    reader.reset();
-//                    if(!Character.isWhitespace(c))
-//                        reader.skip(1);
-//                    return this;
-//                }
-//                reader.reset();
-//                return this;
-//            }
-            reader.mark(1);
-            int c;
-            while(Character.isWhitespace(c = reader.read())) {
-                countRead((char)c);
-                reader.mark(1);
-            }
-            reader.reset();
-            return this;
-        } catch(IOException e) {
-            throw new UncheckedIOException(e);
+        while(ensure(1)) {
+            int start = pos;
+            while(pos < limit && CharClass.isWhitespace(buf[pos])) pos++;
+            countRead(start, pos);
+            if(pos < limit) break;
         }
+        return this;
     }
 
     /**
@@ -304,7 +522,7 @@ class XMLReader implements AutoCloseable {
      */
     XMLReader skipWhitespace() {
         char c = read();
-        if(!Character.isWhitespace(c))
+        if(!CharClass.isWhitespace(c))
             throw new XMLParseException("<whitespace>", c, this);
         return this;
     }
@@ -316,26 +534,11 @@ class XMLReader implements AutoCloseable {
      * @return The next non-whitespace character
      */
     char peekNextNonWhitespace() {
-        try {
-            int c = peek();
-            int i = 2;
-            while(Character.isWhitespace(c)) {
-                reader.mark(i);
-                reader.skip(i / 2);
-                for (int j = i / 2; j < i; j++) {
-                    c = reader.read();
-                    if(c == -1) {
-                        reader.reset();
-                        throw new XMLParseException("Reached end of file during parsing", this);
-                    }
-                    if(!Character.isWhitespace(c)) break;
-                }
-                reader.reset();
-                i *= 2;
-            }
-            return (char) c;
-        } catch(IOException e) {
-            throw new UncheckedIOException(e);
+        for(int i=0;; i++) {
+            if(!ensure(i + 1))
+                throw new XMLParseException("Reached end of file during parsing", this);
+            char c = buf[pos + i];
+            if(!CharClass.isWhitespace(c)) return c;
         }
     }
 
@@ -347,7 +550,7 @@ class XMLReader implements AutoCloseable {
      * @throws XMLParseException If the end of the reader is reached
      */
     XMLReader skip(int count) {
-        for(int i=0; i<count; i++) skip();
+        consume(count);
         return this;
     }
 
@@ -413,14 +616,10 @@ class XMLReader implements AutoCloseable {
      * @throws XMLParseException If the end of the reader is reached
      */
     char read() {
-        try {
-            int c = reader.read();
-            if(c == -1) throw new XMLParseException("Reached end of file during parsing", this);
-            countRead((char)c);
-            return (char)c;
-        } catch(IOException e) {
-            throw new UncheckedIOException(e);
-        }
+        if(!ensure(1)) throw new XMLParseException("Reached end of file during parsing", this);
+        char c = buf[pos++];
+        countRead(c);
+        return c;
     }
 
     /**
@@ -431,9 +630,68 @@ class XMLReader implements AutoCloseable {
      * @throws XMLParseException If the end of the reader is reached
      */
     String read(int count) {
-        StringBuilder string = new StringBuilder(count);
-        for(int i=0; i<count; i++) string.append(read());
-        return string.toString();
+        int start = consume(count);
+        return new String(buf, start, count);
+    }
+
+    /**
+     * Reads and removes the specified number of characters and decodes the escape
+     * sequences in them.
+     *
+     * @param count The number of characters to read
+     * @return The next characters, decoded
+     * @throws XMLParseException If the end of the reader is reached
+     */
+    String readDecoded(int count) {
+        int start = consume(count);
+        return XMLEncoder.decode(buf, start, start + count);
+    }
+
+    /**
+     * Reads and removes all remaining characters.
+     *
+     * @return The remaining characters
+     */
+    String readRemaining() {
+        //noinspection StatementWithEmptyBody
+        while(fill(limit - pos + 1));
+        return read(limit - pos);
+    }
+
+    /**
+     * Reads and removes the specified number of characters as tag name or
+     * attribute key, returning the canonical instance from the symbol table.
+     *
+     * @param count The number of characters to read
+     * @param toLowerCase Whether to convert the name to lowercase
+     * @return The symbol for the next characters
+     * @throws XMLParseException If the end of the reader is reached
+     */
+    String readSymbol(int count, boolean toLowerCase) {
+        int start = consume(count);
+        return symbols.get(buf, start, count, toLowerCase);
+    }
+
+    /**
+     * Consumes the specified number of characters, updating the position
+     * counters accordingly. If fewer characters are available, the remaining
+     * characters are consumed and an exception is thrown.
+     *
+     * @param count The number of characters to consume
+     * @return The index in {@link #buf} of the first consumed character. Valid
+     *         until the next modification of the window
+     * @throws XMLParseException If the end of the reader is reached
+     */
+    private int consume(int count) {
+        if(!ensure(count)) {
+            countRead(pos, limit);
+            pos = limit;
+            throw new XMLParseException("Reached end of file during parsing", this);
+        }
+        int start = pos;
+        pos += count;
+        countRead(start, pos);
+        return start;
     }
 
     /**
@@ -482,17 +740,20 @@ class XMLReader implements AutoCloseable {
      * @throws XMLParseException If the end of the reader is reached
      */
     char peek(int offset) {
-        try {
-            reader.mark(offset + 1);
-            if(offset != 0 && reader.skip(offset) != offset)
-                throw new XMLParseException("Reached end of file during parsing", this);
-            int c = reader.read();
-            reader.reset();
-            if(c == -1) throw new XMLParseException("Reached end of file during parsing", this);
-            return (char)c;
-        } catch(IOException e) {
-            throw new UncheckedIOException(e);
-        }
+        if(!ensure(offset + 1))
+            throw new XMLParseException("Reached end of file during parsing", this);
+        return buf[pos + offset];
+    }
+
+    /**
+     * Returns the character at the given offset without removing it, or
+     * <code>-1</code> if the end of the input is reached before.
+     *
+     * @param offset The offset from the next character to get (non-negative)
+     * @return The character at that offset, or <code>-1</code>
+     */
+    private int peekOrEnd(int offset) {
+        return ensure(offset + 1) ? buf[pos + offset] : -1;
     }
 
     /**
@@ -521,33 +782,22 @@ class XMLReader implements AutoCloseable {
      * @return The name of the next closing tag, or <code>null</code>
      */
     String peekClosingTag() {
-        try {
-            try {
-                varMark(8);
-                if(varRead() != '<' || varRead() != '/') return null;
-
-                int c;
-                //noinspection StatementWithEmptyBody
-                while(Character.isWhitespace(c = varRead()));
-
-                StringBuilder tag = new StringBuilder();
-                while(c != '>' && !Character.isWhitespace(c)) {
-                    if(c == -1) throw new XMLParseException("Reached end of file during parsing", this);
-                    tag.append((char) c);
-                    c = varRead();
-                }
-
-                while(Character.isWhitespace(c)) c = varRead();
-                if(c != '>') throw new XMLParseException('>', c, this);
+        if(peekOrEnd(0) != '<' || peekOrEnd(1) != '/') return null;
 
-                return tag.toString();
+        int i = 2, c;
+        while(CharClass.isWhitespace(c = peekOrEnd(i))) i++;
 
-            } finally {
-                varReset(); // Effectively no reset after mark invalidated
-            }
-        } catch(IOException e) {
-            throw new UncheckedIOException(e);
+        int start = i;
+        while(c != '>' && !CharClass.isWhitespace(c)) {
+            if(c == -1) throw new XMLParseException("Reached end of file during parsing", this);
+            c = peekOrEnd(++i);
         }
+        int end = i;
+
+        while(CharClass.isWhitespace(c)) c = peekOrEnd(++i);
+        if(c != '>') throw new XMLParseException('>', c, this);
+
+        return symbols.get(buf, pos + start, end - start, false);
     }
 
     /**
@@ -557,19 +807,7 @@ class XMLReader implements AutoCloseable {
      * @return Whether the reader starts with the given string
      */
     boolean startsWith(String string) {
-        try {
-            reader.mark(string.length());
-            for(int i=0; i<string.length(); i++) {
-                if(reader.read() != string.charAt(i)) {
-                    reader.reset();
-                    return false;
-                }
-            }
-            reader.reset();
-            return true;
-        } catch(IOException e) {
-            throw new UncheckedIOException(e);
-        }
+        return ensure(string.length()) && matches(0, string);
     }
 
     /**
@@ -579,7 +817,7 @@ class XMLReader implements AutoCloseable {
      * @return Whether the reader starts with the given char
      */
     boolean startsWith(char c) {
-        return !isEmpty() && peek() == c;
+        return ensure(1) && buf[pos] == c;
     }
 
     /**
@@ -591,20 +829,11 @@ class XMLReader implements AutoCloseable {
      *         their case
      */
     boolean startsWithIgnoreCase(String string) {
-        try {
-            reader.mark(string.length());
-            for(int i=0; i<string.length(); i++) {
-                int c = reader.read();
-                if(c == -1 || Character.toLowerCase((char)c) != Character.toLowerCase(string.charAt(i))) {
-                    reader.reset();
-                    return false;
-                }
-            }
-            reader.reset();
-            return true;
-        } catch(IOException e) {
-            throw new UncheckedIOException(e);
-        }
+        if(!ensure(string.length())) return false;
+        for(int i=0; i<string.length(); i++)
+            if(Character.toLowerCase(buf[pos + i]) != Character.toLowerCase(string.charAt(i)))
+                return false;
+        return true;
     }
 
     /**
@@ -619,59 +848,85 @@ class XMLReader implements AutoCloseable {
         return skip(2).skipWhitespaces(false).skip(tag.length()).skipWhitespaces(false).skip(1);
     }
 
-    private int marked = 0, read;
-
     /**
-     * Marks the current position in the reader as the position to possibly reset to later.
-     * The specified buffer size will be initial read ahead limit, but it will grow as needed.
-     * To function properly the {@link #varRead()} and {@link #varReset()} methods have to be
-     * used.
+     * Counts up the position counters according to the read character
      *
-     * @param initialBuffer The initial buffer size, when becoming to small it will keep growing by a factor of 2
+     * @param read The character that was read
      */
-    private void varMark(int initialBuffer) throws IOException {
-        reader.mark(initialBuffer);
-        marked = initialBuffer;
-        read = 0;
+    private void countRead(char read) {
+        if(read == '\n') {
+            line++;
+            charIndex = 1;
+        }
+        else charIndex++;
     }
 
     /**
-     * Resets the readers position to the last marked position. This must be used for varMark
-     * to work properly.
+     * Counts up the position counters according to the characters in the
+     * given range of the window.
+     *
+     * @param from The index of the first read character in {@link #buf}, inclusive
+     * @param to The index of the last read character in {@link #buf}, exclusive
      */
-    private void varReset() throws IOException {
-        reader.reset();
-        read = 0;
+    private void countRead(int from, int to) {
+        for(int i=from; i<to; i++)
+            countRead(buf[i]);
     }
 
     /**
-     * Reads the next character from the reader. If the reader was marked using {@link #varMark(int)}
-     * and the read-ahead limit is reached, it will be doubled.
+     * Copies the given range of characters into the given array, using bulk copies
+     * where the type of the input allows it.
      *
-     * @return The next character, or -1 if the end of the reader has been reached
+     * @param chars The characters to copy from
+     * @param from The index of the first character to copy
+     * @param to The index after the last character to copy
+     * @param dst The array to copy into
+     * @param off The index in <code>dst</code> to copy the first character to
      */
-    private int varRead() throws IOException {
-        if(marked <= 0) return reader.read();
-        if(read >= marked) {
-            reader.reset();
-            reader.mark(marked <<= 1);
-            reader.skip(marked >> 1);
+    private static void getChars(CharSequence chars, int from, int to, char[] dst, int off) {
+        if(chars instanceof String)
+            ((String) chars).getChars(from, to, dst, off);
+        else if(chars instanceof StringBuilder)
+            ((StringBuilder) chars).getChars(from, to, dst, off);
+        else if(chars instanceof CharBuffer) {
+            CharBuffer buffer = ((CharBuffer) chars).duplicate();
+            buffer.position(buffer.position() + from).get(dst, off, to - from);
         }
-        int c = reader.read();
-        if(c != -1) read++;
-        return c;
+        else for(int i=from; i<to; i++)
+            dst[off + i - from] = chars.charAt(i);
     }
 
     /**
-     * Counts up the position counters according to the read character
-     *
-     * @param read The character that was read
+     * Reader over a {@link CharSequence}, used to read large in-memory input in
+     * windows instead of copying it as a whole.
      */
-    private void countRead(char read) {
-        if(read == '\n') {
-            line++;
-            charIndex = 1;
+    private static final class CharSequenceReader extends Reader {
+
+        /**
+         * The characters to read.
+         */
+        private final CharSequence chars;
+        /**
+         * Index of the next character to read.
+         */
+        private int pos = 0;
+
+        CharSequenceReader(CharSequence chars) {
+            this.chars = chars;
         }
-        else charIndex++;
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            int length = chars.length();
+            if(pos >= length) return len == 0 ? 0 : -1;
+            int end = Math.min(length, pos + len);
+            getChars(chars, pos, end, cbuf, off);
+            int count = end - pos;
+            pos = end;
+            return count;
+        }
+
+        @Override
+        public void close() { }
     }
 }
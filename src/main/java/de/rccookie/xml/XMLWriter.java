@@ -0,0 +1,413 @@
+package de.rccookie.xml;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+
+import de.rccookie.util.Arguments;
+
+/**
+ * Internal sink that nodes serialize themselves into. The output is either
+ * collected in a {@link StringBuilder}, or written into an underlying {@link Writer},
+ * {@link OutputStream} or {@link WritableByteChannel} through buffers of fixed size
+ * that are flushed whenever they are full, so that documents of any size are written
+ * with constant extra memory.
+ * <p>When writing bytes, the characters are encoded directly from the buffer.
+ * UTF-8 is encoded by the writer itself, other charsets using a {@link CharsetEncoder}.
+ * Code points that cannot be encoded in the charset are written as numeric character
+ * references. The buffers are reused by the next writer on the same thread once the
+ * writer is closed.</p>
+ * <p>I/O errors of the underlying output are rethrown as {@link UncheckedIOException}.</p>
+ */
+final class XMLWriter implements Appendable, AutoCloseable {
+
+    /**
+     * Size of the character buffer when writing to an underlying output.
+     */
+    private static final int BUFFER_SIZE = 8192;
+    /**
+     * Size of the byte buffer when writing bytes, enough for a full character buffer
+     * in UTF-8.
+     */
+    private static final int BYTE_BUFFER_SIZE = 3 * BUFFER_SIZE;
+    /**
+     * Number of bytes that have to be free in the byte buffer before encoding a
+     * single character as UTF-8 or as numeric character reference.
+     */
+    private static final int MAX_BYTES_PER_CHAR = 12;
+    /**
+     * Spaces to copy indentation from.
+     */
+    private static final String SPACES = " ".repeat(128);
+
+    /**
+     * Buffers per thread that are reused by the writers writing to an underlying
+     * output, while they are not in use.
+     */
+    private static final ThreadLocal<Buffers> REUSABLE_BUFFERS = new ThreadLocal<>();
+
+    /**
+     * The string builder collecting the output, or <code>null</code> if writing to
+     * an underlying output.
+     */
+    private final StringBuilder str;
+    /**
+     * The underlying writer, or <code>null</code>.
+     */
+    private final Writer out;
+    /**
+     * The underlying output stream, or <code>null</code>.
+     */
+    private final OutputStream stream;
+    /**
+     * The underlying channel, or <code>null</code>.
+     */
+    private final WritableByteChannel channel;
+    /**
+     * The encoder for the output charset, or <code>null</code> if not writing bytes
+     * or writing UTF-8.
+     */
+    private final CharsetEncoder encoder;
+    /**
+     * The buffers used, or <code>null</code> if there is no underlying output or
+     * the writer has been closed.
+     */
+    private Buffers buffers;
+    /**
+     * Characters written but not flushed to the underlying output yet, from
+     * {@link #buffers}.
+     */
+    private final char[] buf;
+    /**
+     * Number of characters in {@link #buf}.
+     */
+    private int pos = 0;
+    /**
+     * Number of characters already flushed to the underlying output.
+     */
+    private long flushed = 0;
+
+    /**
+     * Creates a new xml writer that collects the output, to be retrieved using
+     * {@link #toString()}.
+     */
+    XMLWriter() {
+        str = new StringBuilder();
+        out = null;
+        stream = null;
+        channel = null;
+        encoder = null;
+        buf = null;
+    }
+
+    /**
+     * Creates a new xml writer that writes into the given writer.
+     *
+     * @param out The writer to write into
+     */
+    XMLWriter(Writer out) {
+        this(Arguments.checkNull(out, "out"), null, null, null);
+    }
+
+    /**
+     * Creates a new xml writer that writes into the given output stream, encoded
+     * with the given charset.
+     *
+     * @param out The output stream to write into
+     * @param charset The charset to encode with
+     */
+    XMLWriter(OutputStream out, Charset charset) {
+        this(null, Arguments.checkNull(out, "out"), null, charset);
+    }
+
+    /**
+     * Creates a new xml writer that writes into the given channel, encoded with the
+     * given charset.
+     *
+     * @param out The channel to write into
+     * @param charset The charset to encode with
+     */
+    XMLWriter(WritableByteChannel out, Charset charset) {
+        this(null, null, Arguments.checkNull(out, "out"), charset);
+    }
+
+    private XMLWriter(Writer out, OutputStream stream, WritableByteChannel channel, Charset charset) {
+        str = null;
+        this.out = out;
+        this.stream = stream;
+        this.channel = channel;
+        encoder = charset == null || charset.equals(StandardCharsets.UTF_8) ? null : charset.newEncoder();
+
+        Buffers buffers = REUSABLE_BUFFERS.get();
+        if(buffers == null) buffers = new Buffers();
+        else REUSABLE_BUFFERS.set(null); // In use, nested writers have to create their own buffers
+        this.buffers = buffers;
+        buf = buffers.chars;
+    }
+
+    @Override
+    public XMLWriter append(char c) {
+        if(str != null) str.append(c);
+        else {
+            if(pos == buf.length) writeBuffer(false);
+            buf[pos++] = c;
+        }
+        return this;
+    }
+
+    /**
+     * Appends the given string.
+     *
+     * @param s The string to append
+     * @return This writer
+     */
+    public XMLWriter append(String s) {
+        return append(s, 0, s.length());
+    }
+
+    /**
+     * Appends the given range of the given string.
+     *
+     * @param s The string to append from
+     * @param start The index of the first character to append
+     * @param end The end of the characters to append, exclusive
+     * @return This writer
+     */
+    public XMLWriter append(String s, int start, int end) {
+        if(str != null) {
+            str.append(s, start, end);
+            return this;
+        }
+        while(start < end) {
+            if(pos == buf.length) writeBuffer(false);
+            int count = Math.min(end - start, buf.length - pos);
+            s.getChars(start, start + count, buf, pos);
+            pos += count;
+            start += count;
+        }
+        return this;
+    }
+
+    @Override
+    public XMLWriter append(CharSequence s) {
+        if(s == null) return append("null");
+        return append(s, 0, s.length());
+    }
+
+    @Override
+    public XMLWriter append(CharSequence s, int start, int end) {
+        if(s == null) return append("null", start, end);
+        if(s instanceof String) return append((String) s, start, end);
+        if(str != null) str.append(s, start, end);
+        else for(int i=start; i<end; i++)
+            append(s.charAt(i));
+        return this;
+    }
+
+    /**
+     * Appends a line break followed by the indentation for the given level, two
+     * spaces per level.
+     *
+     * @param indent The indentation level of the new line
+     * @return This writer
+     */
+    XMLWriter newline(int indent) {
+        append('\n');
+        for(int spaces = 2 * indent; spaces > 0; spaces -= SPACES.length())
+            append(SPACES, 0, Math.min(spaces, SPACES.length()));
+        return this;
+    }
+
+    /**
+     * Returns the total number of characters written so far.
+     *
+     * @return The length of the output
+     */
+    long length() {
+        return str != null ? str.length() : flushed + pos;
+    }
+
+    /**
+     * Writes all buffered characters to the underlying output and flushes it.
+     * Does nothing if there is no underlying output. This ends the output: an
+     * unpaired high surrogate at the end is written as such even if the next
+     * character written would complete it.
+     */
+    void flush() {
+        if(str != null) return;
+        writeBuffer(true);
+        try {
+            if(out != null) out.flush();
+            else if(stream != null) stream.flush();
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Makes the buffers of this writer available for reuse. The underlying output
+     * is neither flushed nor closed.
+     */
+    @Override
+    public void close() {
+        if(buffers == null) return;
+        buffers.bytes.clear();
+        REUSABLE_BUFFERS.set(buffers);
+        buffers = null;
+    }
+
+    /**
+     * Writes the buffered characters to the underlying output and empties the
+     * buffer. When writing bytes, a high surrogate at the end of the buffer is kept
+     * until the next call, unless this is the end of the output.
+     *
+     * @param endOfOutput Whether no more characters follow
+     */
+    private void writeBuffer(boolean endOfOutput) {
+        if(buffers == null) throw new IllegalStateException("Writer closed");
+        try {
+            int written = pos;
+            if(out != null) out.write(buf, 0, pos);
+            else {
+                written = encoder != null ? encode(endOfOutput) : encodeUTF8(endOfOutput);
+                writeBytes();
+            }
+            System.arraycopy(buf, written, buf, 0, pos - written);
+            pos -= written;
+            flushed += written;
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Encodes the buffered characters as UTF-8 into the byte buffer, writing it when
+     * it is full.
+     *
+     * @param endOfOutput Whether no more characters follow
+     * @return The number of characters encoded
+     * @throws IOException If an I/O error occurs
+     */
+    private int encodeUTF8(boolean endOfOutput) throws IOException {
+        ByteBuffer byteBuffer = buffers.bytes;
+        byte[] bytes = byteBuffer.array();
+        int b = byteBuffer.position();
+        int end = pos;
+        if(!endOfOutput && end != 0 && Character.isHighSurrogate(buf[end - 1])) end--;
+
+        for(int i=0; i<end; i++) {
+            if(b > bytes.length - MAX_BYTES_PER_CHAR) {
+                byteBuffer.position(b);
+                writeBytes();
+                b = 0;
+            }
+            char c = buf[i];
+            if(c < 0x80)
+                bytes[b++] = (byte) c;
+            else if(c < 0x800) {
+                bytes[b++] = (byte) (0xC0 | (c >> 6));
+                bytes[b++] = (byte) (0x80 | (c & 0x3F));
+            }
+            else if(!Character.isSurrogate(c)) {
+                bytes[b++] = (byte) (0xE0 | (c >> 12));
+                bytes[b++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[b++] = (byte) (0x80 | (c & 0x3F));
+            }
+            else if(Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(buf[i+1])) {
+                int codePoint = Character.toCodePoint(c, buf[++i]);
+                bytes[b++] = (byte) (0xF0 | (codePoint >> 18));
+                bytes[b++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                bytes[b++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                bytes[b++] = (byte) (0x80 | (codePoint & 0x3F));
+            }
+            else {
+                // Unpaired surrogate, cannot be encoded
+                String reference = "&#" + (int) c + ';';
+                for(int j=0; j<reference.length(); j++)
+                    bytes[b++] = (byte) reference.charAt(j);
+            }
+        }
+        byteBuffer.position(b);
+        return end;
+    }
+
+    /**
+     * Encodes the buffered characters into the byte buffer using the encoder,
+     * writing it when it is full.
+     *
+     * @param endOfOutput Whether no more characters follow
+     * @return The number of characters encoded
+     * @throws IOException If an I/O error occurs
+     */
+    private int encode(boolean endOfOutput) throws IOException {
+        ByteBuffer bytes = buffers.bytes;
+        CharBuffer chars = buffers.charBuffer;
+        chars.limit(pos).position(0);
+        while(true) {
+            CoderResult result = encoder.encode(chars, bytes, endOfOutput);
+            if(result.isUnderflow()) break;
+            if(result.isOverflow()) writeBytes();
+            else {
+                // Unmappable or unpaired surrogate, write numeric reference instead
+                int codePoint = Character.codePointAt(buf, chars.position(), pos);
+                chars.position(chars.position() + result.length());
+                CharBuffer reference = CharBuffer.wrap("&#" + codePoint + ';');
+                while(encoder.encode(reference, bytes, endOfOutput).isOverflow())
+                    writeBytes();
+            }
+        }
+        if(endOfOutput) {
+            while(encoder.flush(bytes).isOverflow())
+                writeBytes();
+            encoder.reset();
+        }
+        return chars.position();
+    }
+
+    /**
+     * Writes the content of the byte buffer to the underlying output stream or
+     * channel and empties it.
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    private void writeBytes() throws IOException {
+        ByteBuffer bytes = buffers.bytes;
+        if(stream != null)
+            stream.write(bytes.array(), 0, bytes.position());
+        else {
+            bytes.flip();
+            while(bytes.hasRemaining())
+                channel.write(bytes);
+        }
+        bytes.clear();
+    }
+
+    /**
+     * Returns the collected output. If there is an underlying output, only the
+     * characters that have not been flushed yet are returned.
+     *
+     * @return The output as string
+     */
+    @Override
+    public String toString() {
+        return str != null ? str.toString() : new String(buf, 0, pos);
+    }
+
+
+    /**
+     * The buffers of a writer writing to an underlying output.
+     */
+    private static final class Buffers {
+        final char[] chars = new char[BUFFER_SIZE];
+        final CharBuffer charBuffer = CharBuffer.wrap(chars);
+        final ByteBuffer bytes = ByteBuffer.allocate(BYTE_BUFFER_SIZE);
+    }
+}